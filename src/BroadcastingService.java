@@ -8,23 +8,32 @@
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class BroadcastingService implements Runnable {
     private final Neighbor to;    // Sending router
     private final boolean keepalive;
     private final Neighbor from;  // Receiving router
 
-    public static HashMap<Neighbor, Socket> sockets = new HashMap<Neighbor, Socket>();
+    public static ConcurrentHashMap<Neighbor, Socket> sockets = new ConcurrentHashMap<Neighbor, Socket>();
+
+    static final Metrics.Counter dvOut = Metrics.counter("broadcast.dv.out", "Vectores de distancia enviados");
+    static final Metrics.Counter keepaliveOut = Metrics.counter("broadcast.keepalive.out", "KeepAlive enviados");
+    static final Metrics.Counter bytesOut = Metrics.counter("broadcast.bytes.out", "Bytes de control enviados");
+    static final Metrics.Counter sendErrors = Metrics.counter("broadcast.send.errors", "Envios de control fallidos");
+    static final Metrics.Counter connects = Metrics.counter("broadcast.connects", "Conexiones de ruteo abiertas");
 
     public static Socket getSocket(Neighbor from, Neighbor to) throws IOException {
         if (!sockets.containsKey(to)){
             // crear socket
             Setup.println("[Broadcaster.getSocket] Creando socket a " + to.getAddr().getHostAddress());
             Socket socket = new Socket(to.getAddr(), to.getPort());
-            sockets.put(to, socket);
+            connects.inc();
             // enviar hello
             try {
                 Setup.println("[Broadcaster.getSocket] Enviando hello a " + to.getAddr().getHostAddress());
@@ -36,9 +45,11 @@ public class BroadcastingService implements Runnable {
                 Setup.println("[Broadcaster.getSocket] No es posible enviar HELLO a" +
                         to.getAddr().getHostAddress());
             }
+            // published after the HELLO so data frames cannot go out before it
+            sockets.put(to, socket);
             return socket;
         }
-        Setup.println("[Broadcaster.getSocket] Reutilizando socket a " + to.getAddr().getHostAddress());
+        if (Setup.isLoggable(Setup.BROADCAST, Setup.DEBUG)) Setup.log(Setup.BROADCAST, Setup.DEBUG, "[Broadcaster.getSocket] Reutilizando socket a %s", to.getAddr().getHostAddress());
         return sockets.get(to);
     }
 
@@ -48,9 +59,39 @@ public class BroadcastingService implements Runnable {
         result.append(Setup.ROUTER_NAME);
         result.append("\n");
         result.append("Type:HELLO\n");
+        if (RouterConfig.get().compression) {
+            // tell the neighbor it may send us deflated DVs and messages
+            result.append("Encoding:").append(Compression.DEFLATE).append("\n");
+        }
+        if (RouterConfig.get().multiplex) {
+            // and that it may forward data to us over this connection
+            result.append("Multiplex:").append(NeighborSession.DATA).append("\n");
+        }
         return result.toString();
     }
 
+    private static String getEchoMsg(int seq) {
+        return "From:" + Setup.ROUTER_NAME + "\nType:Echo\nSeq:" + seq + "\n";
+    }
+
+    /**
+     * Writes a complete message on the connection to a neighbor. Writes go
+     * through the neighbor's session so concurrent senders do not
+     * interleave and control messages pass data frames.
+     */
+    public static void send(Neighbor from, Neighbor to, String msg) throws IOException {
+        Socket sock = getSocket(from, to);
+        try {
+            byte[] bytes = msg.getBytes("UTF-8");
+            to.getSession().sendControl(sock, bytes);
+            bytesOut.add(bytes.length);
+        } catch (IOException e) {
+            sendErrors.inc();
+            sockets.remove(to);
+            throw e;
+        }
+    }
+
     private static String getKeepAliveMsg(Neighbor from) {
         StringBuilder result = new StringBuilder();
         result.append("From:");
@@ -80,6 +121,9 @@ public class BroadcastingService implements Runnable {
         // a String so it can be read using a Scanner:
         /////////////////////////////////////////////////////
         String dvs = convert(from.getDv());
+        if (Compression.use(to, dvs.length())) {
+            dvs = compress(dvs);
+        }
 
         /////////////////////////////////////////////////////
         // Make ten attempts to send the packet, then give up. The ten attempts
@@ -97,21 +141,30 @@ public class BroadcastingService implements Runnable {
 
                 sock = BroadcastingService.getSocket(from, to); // obtener socket del pool
 
-                Setup.println("[BroadcastingService.run] Notificando a " + to.getAddr().getHostAddress());
-                DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+                if (Setup.isLoggable(Setup.BROADCAST, Setup.DEBUG)) Setup.log(Setup.BROADCAST, Setup.DEBUG, "[BroadcastingService.run] Notificando a %s", to.getAddr().getHostAddress());
                 if (keepalive){
                     String msg = getKeepAliveMsg(from);
-                    Setup.println(msg.replaceAll("^", "[BroadcastingService.run]\n"));
-                    out.writeBytes(msg);
+                    if (RouterConfig.get().dynamicCosts) {
+                        // taken here so the RTT does not include the wait above
+                        msg += getEchoMsg(to.getMonitor().nextEcho());
+                    }
+                    if (Setup.isLoggable(Setup.BROADCAST, Setup.DEBUG)) Setup.log(Setup.BROADCAST, Setup.DEBUG, "[BroadcastingService.run]\n%s", msg);
+                    byte[] bytes = msg.getBytes("UTF-8");
+                    to.getSession().sendControl(sock, bytes);
+                    keepaliveOut.inc();
+                    bytesOut.add(bytes.length);
                 } else {
-                    Setup.println(dvs.replaceAll("^", "[BroadcastingService.run]\n"));
-                    out.writeBytes(dvs);
+                    if (Setup.isLoggable(Setup.BROADCAST, Setup.DEBUG)) Setup.log(Setup.BROADCAST, Setup.DEBUG, "[BroadcastingService.run]\n%s", dvs);
+                    byte[] bytes = dvs.getBytes("UTF-8");
+                    to.getSession().sendControl(sock, bytes);
+                    dvOut.inc();
+                    bytesOut.add(bytes.length);
                 }
-                out.flush();
 
                 //  sock.close();
                 done = true;
             } catch (Exception e) {
+                sendErrors.inc();
                 tries = 10;//tries++;
                 //   if (tries >= 10)
                 Setup.println("[BroadcastingService.run] No es posible enviar a " +
@@ -121,6 +174,24 @@ public class BroadcastingService implements Runnable {
         }
     }
 
+    /////////////////////////////////////////////////////
+    // Turns a "Type:DV" message into "Type:ZDV": same From
+    // and Len lines, followed by the entries deflated and
+    // Base64 encoded on a single line.
+    /////////////////////////////////////////////////////
+    public static String compress(String dvs) {
+        int type = dvs.indexOf("Type:DV\n");
+        int entries = dvs.indexOf('\n', dvs.indexOf("Len:", type)) + 1;
+        byte[] data;
+        try {
+            data = Compression.deflate(dvs.substring(entries).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return dvs;
+        }
+        return dvs.substring(0, type) + "Type:ZDV\n" + dvs.substring(type + 8, entries) +
+                Base64.getEncoder().encodeToString(data) + "\n";
+    }
+
     /////////////////////////////////////////////////////
     // Utility to take an integer vector and convert it
     // into a string of numbers separated by spaces.
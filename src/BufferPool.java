@@ -0,0 +1,63 @@
+/**
+ * BufferPool.java -- fixed set of direct buffers for the forwarding path.
+ *
+ * One direct slab is allocated at startup and cut into BUFFER_SIZE
+ * slices. Buffers are handed out reference counted and go back to the free
+ * list when the last holder releases them, so steady-state forwarding
+ * does not allocate I/O buffers per message.
+ *
+ * When the pool is exhausted a heap buffer is handed out instead and
+ * simply dropped on release (counted as a miss).
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFERS = 64;
+
+    static final BufferPool shared = new BufferPool(BUFFERS, BUFFER_SIZE);
+
+    private final ArrayBlockingQueue<PooledBuffer> free;
+    private final int bufferSize;
+    private final AtomicLong misses = new AtomicLong();
+
+    public BufferPool(int count, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<PooledBuffer>(count);
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * bufferSize);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            free.add(new PooledBuffer(this, slab.slice()));
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with a reference count of one.
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer b = free.poll();
+        if (b == null) {
+            misses.incrementAndGet();
+            b = new PooledBuffer(null, ByteBuffer.allocate(bufferSize));
+        }
+        b.reset();
+        return b;
+    }
+
+    void recycle(PooledBuffer b) {
+        b.buffer().clear();
+        free.offer(b);
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
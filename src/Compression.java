@@ -0,0 +1,112 @@
+/**
+ * Compression.java -- deflate helpers for links that negotiated
+ * "Encoding:deflate" in their HELLO.
+ *
+ * Deflater/Inflater contexts and scratch arrays are kept per thread and
+ * reset between uses instead of being created per message. Inflated data
+ * is capped at MAX_INFLATED bytes, so a small payload cannot expand
+ * without bound.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class Compression {
+    public static final String DEFLATE = "deflate";
+    // larger than any table or unchunked message (see ForwardingService.STREAM_THRESHOLD)
+    public static final int MAX_INFLATED = 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8 * 1024];
+        }
+    };
+
+    /**
+     * True when a message of this length should be compressed for nbr.
+     */
+    public static boolean use(Neighbor nbr, int length) {
+        RouterConfig config = RouterConfig.get();
+        return config.compression && nbr != null && nbr.acceptsDeflate() && length >= config.compressionThreshold;
+    }
+
+    /**
+     * Compresses len bytes of in and appends the result to out.
+     */
+    public static void deflate(byte[] in, int off, int len, ByteBuffer out) {
+        Deflater deflater = deflaters.get();
+        byte[] buf = scratch.get();
+        deflater.reset();
+        deflater.setInput(in, off, len);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.put(buf, 0, n);
+        }
+    }
+
+    public static byte[] deflate(byte[] in) {
+        ByteBuffer out = ByteBuffer.allocate(in.length + 64);
+        deflate(in, 0, in.length, out);
+        byte[] result = new byte[out.position()];
+        out.flip();
+        out.get(result);
+        return result;
+    }
+
+    /**
+     * Inflates len bytes of in into out, which is grown as needed.
+     * The inflated data is between 0 and the returned buffer's position.
+     *
+     * @throws DataFormatException if the data is corrupt or inflates to
+     *                             more than MAX_INFLATED bytes
+     */
+    public static ByteBuffer inflate(byte[] in, int off, int len, ByteBuffer out) throws DataFormatException {
+        Inflater inflater = inflaters.get();
+        byte[] buf = scratch.get();
+        inflater.reset();
+        inflater.setInput(in, off, len);
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buf);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Datos comprimidos incompletos");
+            }
+            if (out.position() + n > MAX_INFLATED) {
+                throw new DataFormatException("Datos comprimidos exceden " + MAX_INFLATED + " bytes");
+            }
+            if (out.remaining() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_INFLATED, Math.max(out.capacity() * 2, out.position() + n)));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(buf, 0, n);
+        }
+        return out;
+    }
+
+    public static byte[] inflate(byte[] in) throws DataFormatException {
+        ByteBuffer out = inflate(in, 0, in.length, ByteBuffer.allocate(Math.min(MAX_INFLATED, in.length * 4 + 64)));
+        byte[] result = new byte[out.position()];
+        out.flip();
+        out.get(result);
+        return result;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * ConsoleLogger.java -- batches log output for the console text area.
+ *
+ * Setup.print may be called from any thread, many times per routing
+ * update. Fragments go into a lock-free ring without blocking; a Swing
+ * timer drains it on the event thread every FRAME ms and appends the whole
+ * batch at once, so the event queue holds at most one pending log task.
+ * When producers outrun the console the ring fills and further fragments
+ * are dropped and counted.
+ *
+ * The text area keeps only the last Setup.CONSOLE_LINES lines so a router
+ * running for days does not grow its heap; Setup.print also hands every
+ * fragment to the RollingLogFile, which keeps the full stream on disk.
+ */
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConsoleLogger implements ActionListener {
+    private static final int FRAME = 100; // ms
+    private static final int BATCH = 4096;
+
+    private final RingBuffer<String> ring;
+    private final AtomicLong dropped = new AtomicLong();
+    private final ArrayList<String> batch = new ArrayList<String>(BATCH);
+    private long reported = 0;
+    private JTextArea area;
+    private Timer timer;
+
+    public ConsoleLogger(int capacity) {
+        ring = new RingBuffer<String>(capacity);
+    }
+
+    /**
+     * Queues a fragment. Never blocks; returns false if it was dropped.
+     */
+    public boolean log(String txt) {
+        if (ring.offer(txt == null ? "null" : txt)) return true;
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Starts appending to area. Call on the event thread.
+     */
+    public void start(JTextArea area) {
+        this.area = area;
+        if (timer == null) {
+            timer = new Timer(FRAME, this);
+            timer.start();
+        }
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.stop();
+            timer = null;
+        }
+    }
+
+    public void actionPerformed(ActionEvent e) {
+        StringBuilder sb = new StringBuilder();
+        // bounded so one frame cannot hold the event thread for long
+        while (sb.length() < 64 * 1024 && ring.drainTo(batch, BATCH) > 0) {
+            for (String s : batch) {
+                sb.append(s);
+            }
+            batch.clear();
+        }
+        long lost = dropped.get();
+        if (lost != reported) {
+            sb.append("[ConsoleLogger] ").append(lost - reported).append(" mensajes de log descartados\n");
+            reported = lost;
+        }
+        if (sb.length() > 0) {
+            String txt = sb.toString();
+            area.append(txt);
+            trim();
+        }
+    }
+
+    /**
+     * Evicts the oldest lines beyond Setup.CONSOLE_LINES.
+     */
+    private void trim() {
+        int excess = area.getLineCount() - Setup.CONSOLE_LINES;
+        if (excess <= 0) return;
+        try {
+            area.replaceRange(null, 0, area.getLineStartOffset(excess));
+        } catch (BadLocationException e) {
+            area.setText(null);
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -2,6 +2,7 @@ import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 import javax.swing.border.*;
+import java.util.Properties;
 /*
  * Created by JFormDesigner on Mon Nov 17 08:36:25 CST 2014
  */
@@ -16,7 +17,29 @@ public class DialogSettings extends JDialog {
         initComponents();
     }
 
+    @Override
+    public void setVisible(boolean b) {
+        if (b) {
+            // show what is running, which a reloaded file may have changed
+            RouterConfig config = RouterConfig.get();
+            txtInterval.setText(Integer.toString(config.updateInterval));
+            chkSendResponse.setSelected(config.sendResponse);
+            txtResponse.setText(config.responseHeader);
+        }
+        super.setVisible(b);
+    }
+
     private void okButtonActionPerformed(ActionEvent e) {
+        Properties p = RouterConfig.get().toProperties();
+        p.setProperty("update.interval", txtInterval.getText());
+        p.setProperty("keepalive.response", Boolean.toString(chkSendResponse.isSelected()));
+        p.setProperty("keepalive.response.header", txtResponse.getText());
+        try {
+            RouterConfig.save(new RouterConfig(p));
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage());
+            return;
+        }
         setVisible(false);
     }
 
@@ -0,0 +1,158 @@
+/**
+ * EventJournal.java -- binary ring of routing events for post-mortem
+ * analysis of convergence.
+ *
+ * File layout: [magic][record size][capacity] padded to HEADER bytes,
+ * followed by capacity fixed-width records of
+ * [seq][time (ns since epoch)][type][old][new][reserved][name][peer], the
+ * names cut to NAME - 1 bytes. A record's seq is written last, so a
+ * record with seq 0 was never completed. Once the file is full the oldest
+ * records are overwritten. Writers only claim a slot and put a few
+ * fields into the mapping, which is much cheaper than formatting text.
+ *
+ * Run as a program to dump a journal:
+ * java EventJournal journal/A.jnl [-type BETTER_ROUTE] [-node B] [-since ms] [-until ms]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class EventJournal {
+    public static final int DV_RECEIVED = 1;     // peer sent its vector; new = entries
+    public static final int BETTER_ROUTE = 2;    // name via peer; old -> new cost
+    public static final int ROUTE_DOWN = 3;      // name unreachable; old cost
+    public static final int NEIGHBOR_DOWN = 4;   // peer missed its keepalives
+    public static final int NEIGHBOR_ALIVE = 5;  // peer heard from after being down
+    public static final int LINK_COST = 6;       // measured cost to peer; old -> new
+    private static final String[] TYPES = {"?", "DV_RECEIVED", "BETTER_ROUTE", "ROUTE_DOWN",
+            "NEIGHBOR_DOWN", "NEIGHBOR_ALIVE", "LINK_COST"};
+
+    private static final int MAGIC = 0x4a4e4c31; // "JNL1"
+    private static final int HEADER = 32;
+    private static final int RECORD = 64;
+    private static final int NAME = 16;
+
+    // wall clock at nanosecond resolution: epoch offset plus the monotonic clock
+    private static final long EPOCH_NANOS = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final AtomicLong seq;
+
+    public EventJournal(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * RECORD);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+        long last = 0;
+        if (map.getInt(0) == MAGIC && map.getInt(4) == RECORD && map.getInt(8) == capacity) {
+            for (int i = 0; i < capacity; i++) {
+                last = Math.max(last, map.getLong(HEADER + i * RECORD));
+            }
+        } else {
+            for (int i = HEADER; i < map.capacity(); i += 8) map.putLong(i, 0);
+            map.putInt(4, RECORD);
+            map.putInt(8, capacity);
+            map.putInt(0, MAGIC);
+        }
+        this.capacity = capacity;
+        this.seq = new AtomicLong(last);
+    }
+
+    public void record(int type, String name, String peer, int oldValue, int newValue) {
+        long s = seq.incrementAndGet();
+        int pos = HEADER + (int) ((s - 1) % capacity) * RECORD;
+        map.putLong(pos, 0); // incomplete while being rewritten
+        map.putLong(pos + 8, EPOCH_NANOS + System.nanoTime());
+        map.putInt(pos + 16, type);
+        map.putInt(pos + 20, oldValue);
+        map.putInt(pos + 24, newValue);
+        putName(pos + 32, name);
+        putName(pos + 32 + NAME, peer);
+        map.putLong(pos, s);
+    }
+
+    private void putName(int pos, String name) {
+        int len = 0;
+        if (name != null) {
+            for (; len < name.length() && len < NAME - 1; len++) {
+                char c = name.charAt(len);
+                map.put(pos + 1 + len, (byte) (c < 128 ? c : '?'));
+            }
+        }
+        map.put(pos, (byte) len);
+    }
+
+    private static String getName(MappedByteBuffer map, int pos) {
+        byte[] b = new byte[Math.min(map.get(pos) & 0xFF, NAME - 1)];
+        for (int i = 0; i < b.length; i++) b[i] = map.get(pos + 1 + i);
+        return new String(b);
+    }
+
+    //region Offline reader
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Uso: java EventJournal ARCHIVO [-type TIPO] [-node NOMBRE] [-since MS] [-until MS]");
+            return;
+        }
+        String type = null;
+        String node = null;
+        long since = 0;
+        long until = Long.MAX_VALUE;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-type")) type = args[i + 1];
+            else if (args[i].equals("-node")) node = args[i + 1];
+            else if (args[i].equals("-since")) since = Long.parseLong(args[i + 1]);
+            else if (args[i].equals("-until")) until = Long.parseLong(args[i + 1]);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(args[0], "r");
+        MappedByteBuffer map;
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (map.capacity() < HEADER || map.getInt(0) != MAGIC || map.getInt(4) != RECORD) {
+            System.out.println("No es un journal de eventos: " + args[0]);
+            return;
+        }
+        int capacity = Math.min(map.getInt(8), (map.capacity() - HEADER) / RECORD);
+
+        TreeMap<Long, Integer> order = new TreeMap<Long, Integer>();
+        for (int i = 0; i < capacity; i++) {
+            long s = map.getLong(HEADER + i * RECORD);
+            if (s != 0) order.put(s, HEADER + i * RECORD);
+        }
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        int shown = 0;
+        for (Map.Entry<Long, Integer> e : order.entrySet()) {
+            int pos = e.getValue();
+            long nanos = map.getLong(pos + 8);
+            int t = map.getInt(pos + 16);
+            String typeName = (t > 0 && t < TYPES.length) ? TYPES[t] : Integer.toString(t);
+            String name = getName(map, pos + 32);
+            String peer = getName(map, pos + 32 + NAME);
+            long millis = nanos / 1000000L;
+            if (millis < since || millis > until) continue;
+            if (type != null && !type.equalsIgnoreCase(typeName)) continue;
+            if (node != null && !node.equalsIgnoreCase(name) && !node.equalsIgnoreCase(peer)) continue;
+            System.out.println(String.format("%d %s%06d %-14s %-15s %-15s %d -> %d", e.getKey(),
+                    df.format(new Date(millis)), nanos % 1000000L, typeName, name, peer,
+                    map.getInt(pos + 20), map.getInt(pos + 24)));
+            shown++;
+        }
+        System.out.println(shown + " de " + order.size() + " eventos");
+    }
+
+    //endregion
+}
@@ -1,10 +1,44 @@
 /**
  * Created by Werner on 11/3/2014.
  */
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ForwarderMessage {
+    // traffic classes, lower value = more urgent
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_BULK = 2;
+    public static final int PRIORITY_CLASSES = 3;
+
+    String id; // unique per message, assigned by the origin router
     String from;
     String to;
     String text;
+    int priority = PRIORITY_NORMAL;
+    int ttl = RouterConfig.get().messageTtl; // decremented by every router that forwards it
+    String path; // routers visited, only when path recording is on
+
+    // acknowledged delivery (see ReliableMessaging): data messages carry
+    // session/seq and in ack the sender's base, Type:ACK messages carry
+    // ack (cumulative) and sack
+    String type;
+    String session;
+    int seq = -1;
+    int ack = -1;
+    String sack;
+
+    // chunked streams: id of the stream, sequence number and last-chunk flag
+    String stream;
+    int chunk;
+    boolean last;
+    // local only: released once the message and its multicast copies left this router
+    Semaphore window;
+    // local only: how many of them still hold window, shared by the copies; null without copies
+    AtomicInteger windowHolders;
+    // local only: System.nanoTime() when it arrived from a neighbor, 0 if originated here
+    long arrivedAt;
 
     public ForwarderMessage(String from, String to, String text){
         this.from = from;
@@ -12,8 +46,112 @@ public class ForwarderMessage {
         this.text = text;
     }
 
+    public ForwarderMessage(String from, String to, String text, int priority){
+        this(from, to, text);
+        setPriority(priority);
+    }
+
+    public void setPriority(int priority) {
+        // unknown classes are treated as normal traffic
+        this.priority = (priority < 0 || priority >= PRIORITY_CLASSES) ? PRIORITY_NORMAL : priority;
+    }
+
+    public static ForwarderMessage chunk(String from, String to, String stream, int chunk, boolean last, String text) {
+        ForwarderMessage m = new ForwarderMessage(from, to, text, PRIORITY_BULK);
+        m.stream = stream;
+        m.chunk = chunk;
+        m.last = last;
+        return m;
+    }
+
+    /**
+     * Copy of this message for another set of targets (multicast branch).
+     * The copy shares this message's stream window, which is released once
+     * every copy and the message itself are done.
+     */
+    public ForwarderMessage copy(String to) {
+        ForwarderMessage m = new ForwarderMessage(from, to, text, priority);
+        m.id = id;
+        m.ttl = ttl;
+        m.path = path;
+        m.stream = stream;
+        m.chunk = chunk;
+        m.last = last;
+        m.type = type;
+        m.session = session;
+        m.seq = seq;
+        m.ack = ack;
+        m.sack = sack;
+        m.arrivedAt = arrivedAt;
+        synchronized (this) {
+            if (window != null) {
+                if (windowHolders == null) windowHolders = new AtomicInteger(1);
+                windowHolders.incrementAndGet();
+                m.window = window;
+                m.windowHolders = windowHolders;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Multicast messages carry a comma separated list of targets in "To".
+     */
+    public boolean isMulticast() {
+        return to.indexOf(',') >= 0;
+    }
+
+    public boolean isChunk() {
+        return stream != null;
+    }
+
+    /**
+     * True if this router already appears in the recorded path.
+     */
+    public boolean visited(String router) {
+        if (path == null) return false;
+        for (String r : path.split(",")) {
+            if (r.equalsIgnoreCase(router)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called once this router is done with the message: written, spooled or
+     * dropped. Only the first call counts.
+     */
+    public synchronized void done() {
+        if (window == null) return;
+        if (windowHolders == null || windowHolders.decrementAndGet() == 0) window.release();
+        window = null;
+    }
+
+    /**
+     * Approximate size on the wire, used by the outbound scheduler.
+     */
+    public int size() {
+        return from.length() + to.length() + text.length() + 24;
+    }
+
     @Override
     public String toString() {
-        return "From:" + from + "\nTo:" + to + "\nMsg:"+text+"\n";
+        StringBuilder result = new StringBuilder();
+        if (id != null) result.append("Id:").append(id).append("\n");
+        result.append("From:").append(from).append("\n");
+        result.append("To:").append(to).append("\n");
+        result.append("Priority:").append(priority).append("\n");
+        result.append("TTL:").append(ttl).append("\n");
+        if (path != null) result.append("Path:").append(path).append("\n");
+        if (type != null) result.append("Type:").append(type).append("\n");
+        if (session != null) result.append("Session:").append(session).append("\n");
+        if (seq >= 0) result.append("Seq:").append(seq).append("\n");
+        if (type != null || ack >= 0) result.append("Ack:").append(ack).append("\n");
+        if (sack != null) result.append("Sack:").append(sack).append("\n");
+        if (stream != null) {
+            result.append("Stream:").append(stream).append("\n");
+            result.append("Chunk:").append(chunk).append(last ? ":last" : "").append("\n");
+        }
+        result.append("Msg:").append(text).append("\n");
+        return result.toString();
      }
 }
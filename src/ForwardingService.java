@@ -3,17 +3,39 @@
  * http://ipsit.bu.edu/sc546/sc546Fall2002/RIP2/RIP/
  */
 
-import javax.swing.*;
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ForwardingService implements Runnable {
     protected int serverPort;
@@ -23,32 +45,703 @@ public class ForwardingService implements Runnable {
     protected ExecutorService threadPool = Executors.newFixedThreadPool(10);
     protected InetAddress address;
 
+    // messages longer than this are sent as a chunked stream
+    protected static final int STREAM_THRESHOLD = 64 * 1024;
+    protected static final int STREAM_CHUNK_SIZE = 16 * 1024;
+    // chunks of one stream allowed to wait in this router's queues
+    protected static final int STREAM_WINDOW = 8;
+    // a transit stream's window is forgotten this long after its last chunk (ms)
+    protected static final long STREAM_IDLE = 60 * 1000;
+    // transit chunks of one stream waiting for room in its window; more are dropped
+    protected static final int STREAM_BACKLOG = 4 * STREAM_WINDOW;
+    // large messages are streamed by this many threads, with at most STREAM_PENDING waiting
+    protected static final int STREAM_SENDERS = 2;
+    protected static final int STREAM_PENDING = 16;
+
+    static final StreamReassembler reassembler = new StreamReassembler();
+    private static final ThreadPoolExecutor streamSenders = new ThreadPoolExecutor(STREAM_SENDERS, STREAM_SENDERS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(STREAM_PENDING), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SendStream");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    static final HashMap<String, TransitWindow> streamWindows = new HashMap<String, TransitWindow>();
+    private static long streamWindowsSwept = 0;
+    private static final AtomicInteger streamCount = new AtomicInteger();
+
+    // ids of forwarded messages seen recently, to drop loops and re-sends
+    static final MessageIdCache seenIds = new MessageIdCache();
+    private static final String idPrefix = Long.toString(System.currentTimeMillis(), 36);
+    private static final AtomicLong idCount = new AtomicLong();
+
+    // messages addressed to this router
+    static final LocalInbox inbox = new LocalInbox(64 * 1024);
+
+    static final AtomicLong ttlExpired = new AtomicLong();
+    static final AtomicLong loopsDetected = new AtomicLong();
+
+    static final Metrics.Counter received = Metrics.counter("forwarding.received", "Mensajes recibidos de vecinos");
+    static final Metrics.Counter forwarded = Metrics.counter("forwarding.forwarded", "Mensajes recibidos y reenviados");
+    static final Metrics.Counter noRoute = Metrics.counter("forwarding.no.route", "Mensajes sin ruta al destino");
+    static final Metrics.Counter sent = Metrics.counter("forwarding.sent", "Mensajes escritos a un vecino");
+    static final Metrics.Counter sentMultiplexed = Metrics.counter("forwarding.sent.multiplexed", "Mensajes escritos por la sesion de ruteo");
+    static final Metrics.Counter sendFailed = Metrics.counter("forwarding.send.failed", "Envios fallidos a un vecino");
+    static final Metrics.Counter bytesOut = Metrics.counter("forwarding.bytes.out", "Bytes escritos a vecinos");
+    static final Metrics.Counter rerouted = Metrics.counter("forwarding.rerouted", "Mensajes desviados al salto alterno");
+    static final Metrics.Counter spooled = Metrics.counter("forwarding.spooled", "Mensajes guardados en spool");
+
     //region Static methods
 
     static boolean SendMessage(ForwarderMessage message){
+        if (!message.isChunk() && message.text.length() > STREAM_THRESHOLD) {
+            // only whether it was accepted; callers that need the outcome use submitStream
+            return submitStream(message) != null;
+        }
+        if (message.isMulticast()) {
+            return sendMulticast(message);
+        }
         if (message.to.equalsIgnoreCase(Setup.ROUTER_NAME)) {
+            if (message.isChunk()) {
+                reassembler.accept(message);
+                message.done();
+                return true;
+            }
             // we are the target
-            Setup.println("<<Received Incoming Message to ME from " + message.from + ">>\n" + message.text + "\n");
+            return deliverLocal(message);
+        }
+        if (message.id == null) {
+            // originated here
+            message.id = Setup.ROUTER_NAME + "-" + idPrefix + "-" + idCount.incrementAndGet();
+            seenIds.firstSeen(message.id);
+            RouterConfig config = RouterConfig.get();
+            message.ttl = config.messageTtl;
+            if (config.recordPath) message.path = Setup.ROUTER_NAME;
+        }
+        String hop = RoutingService.selectNextHop(message.from, message.to);
+        if (hop == null) {
+            noRoute.inc();
+            Setup.println("[ForwardingService.SendMessage] No hay ruta hacia " + message.to);
+            if (!spool(message)) return false;
+            message.done();
             return true;
         }
-        InetAddress addr = null;
+        if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "[ForwardingService.SendMessage] Encolando mensaje a %s via %s", message.to, hop);
+        //JOptionPane.showMessageDialog(null, "El mensaje ha sido enviado a " + message.to);
+        return getQueue(hop).offer(message);
+    }
+
+    /**
+     * Streams a large message on one of the STREAM_SENDERS threads. The
+     * result tells whether every chunk was queued; null means it was
+     * refused because STREAM_PENDING streams are already waiting.
+     */
+    static Future<Boolean> submitStream(final ForwarderMessage message) {
         try {
-            Setup.println("[ForwardingService.SendMessage] Creando socket a " + message.to);
-            for(NbrCostPair nbr : Setup.nbrList){
-                if (RoutingService.next.containsKey(message.to) &&
-                        nbr.getNbr().getId().equalsIgnoreCase(RoutingService.next.get(message.to))) addr = nbr.getNbr().getAddr();
-            }
-            Socket socket = new Socket(addr, Setup.FORWARDING_PORT);
-            Setup.println("[ForwardingService.SendMessage] Enviando mensaje a " + addr.getHostAddress());
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            out.writeBytes(message.toString());
-            out.flush();
-            socket.close();
+            return streamSenders.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return SendStream(message.from, message.to, new StringReader(message.text));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Setup.println("[ForwardingService.submitStream] Demasiados streams pendientes, mensaje a " + message.to + " rechazado");
+            return null;
+        }
+    }
+
+    /**
+     * Hands a message addressed to this router to the inbox. Reliable
+     * messages are acknowledged only once the inbox took them. Returns
+     * false if the inbox was full.
+     */
+    static boolean deliverLocal(ForwarderMessage message) {
+        if (ReliableMessaging.ACK.equals(message.type)) {
+            ReliableMessaging.onAck(message);
+            return true;
+        }
+        if (message.seq >= 0 && message.session != null) {
+            return ReliableMessaging.onData(message, inbox);
+        }
+        return inbox.deliver(message);
+    }
+
+    /**
+     * Splits a multicast message by next hop: one copy per neighbor, listing
+     * only the targets reached through it, so the payload is duplicated
+     * only where the paths diverge. Copies get the branch appended to their
+     * id so routers where branches meet again do not take them for duplicates.
+     */
+    static boolean sendMulticast(ForwarderMessage message) {
+        if (message.id == null) {
+            message.id = Setup.ROUTER_NAME + "-" + idPrefix + "-" + idCount.incrementAndGet();
+            seenIds.firstSeen(message.id);
+            RouterConfig config = RouterConfig.get();
+            message.ttl = config.messageTtl;
+            if (config.recordPath) message.path = Setup.ROUTER_NAME;
+        }
+        LinkedHashMap<String, StringBuilder> branches = new LinkedHashMap<String, StringBuilder>();
+        boolean ok = true;
+        for (String target : message.to.split(",")) {
+            target = target.trim();
+            if (target.length() == 0) continue;
+            if (target.equalsIgnoreCase(Setup.ROUTER_NAME)) {
+                ForwarderMessage local = message.copy(Setup.ROUTER_NAME);
+                if (local.isChunk()) {
+                    reassembler.accept(local);
+                } else {
+                    ok &= deliverLocal(local);
+                }
+                local.done();
+                continue;
+            }
+            String hop = RoutingService.selectNextHop(message.from, target);
+            if (hop == null) {
+                Setup.println("[ForwardingService.sendMulticast] No hay ruta hacia " + target);
+                ForwarderMessage copy = message.copy(target);
+                ok &= spool(copy);
+                copy.done();
+                continue;
+            }
+            StringBuilder targets = branches.get(hop);
+            if (targets == null) {
+                branches.put(hop, new StringBuilder(target));
+            } else {
+                targets.append(',').append(target);
+            }
+        }
+        for (Map.Entry<String, StringBuilder> branch : branches.entrySet()) {
+            ForwarderMessage copy = message.copy(branch.getValue().toString());
+            if (branches.size() > 1) copy.id = message.id + ">" + branch.getKey();
+            if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "[ForwardingService.sendMulticast] Encolando copia a %s via %s", copy.to, branch.getKey());
+            if (!getQueue(branch.getKey()).offer(copy)) {
+                copy.done();
+                ok = false;
+            }
+        }
+        message.done();
+        return ok;
+    }
+
+    /**
+     * Sends everything read from source to the target as a chunked stream.
+     * Only STREAM_WINDOW chunks are buffered at a time; the call blocks
+     * until the last chunk has been queued. A chunk never ends between the
+     * two halves of a surrogate pair, which would not survive UTF-8.
+     */
+    static boolean SendStream(String from, String to, Reader source) {
+        String stream = Long.toString(System.currentTimeMillis(), 36) + "-" + streamCount.incrementAndGet();
+        Semaphore window = new Semaphore(STREAM_WINDOW);
+        char[] buf = new char[STREAM_CHUNK_SIZE];
+        char[] ahead = new char[STREAM_CHUNK_SIZE];
+        Setup.println("[ForwardingService.SendStream] Iniciando stream " + stream + " a " + to);
+        try {
+            int seq = 0;
+            int len = Math.max(fill(source, buf, 0), 0);
+            while (true) {
+                int carry = 0;
+                if (len > 1 && Character.isHighSurrogate(buf[len - 1])) {
+                    // the low surrogate is in the next chunk: move the high one there too
+                    ahead[0] = buf[--len];
+                    carry = 1;
+                }
+                // read one chunk ahead to know whether this one is the last
+                int nextLen = fill(source, ahead, carry);
+                boolean last = nextLen < 0;
+                ForwarderMessage chunk = ForwarderMessage.chunk(from, to, stream, seq++, last, new String(buf, 0, len));
+                chunk.window = window;
+                window.acquire();
+                if (!SendMessage(chunk)) {
+                    Setup.println("[ForwardingService.SendStream] Stream " + stream + " abortado");
+                    return false;
+                }
+                if (last) break;
+                char[] tmp = buf;
+                buf = ahead;
+                ahead = tmp;
+                len = nextLen;
+            }
+            Setup.println("[ForwardingService.SendStream] Stream " + stream + " enviado en " + seq + " fragmentos");
+            return true;
         } catch (Exception e) {
-            Setup.println("[ForwardingService.SendMessage] No es posible enviar mensaje al destino " + e.getMessage());
+            Setup.println("[ForwardingService.SendStream] Error en stream " + stream + ": " + e.getMessage());
             return false;
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Encodes the message into the pooled buffer, or into a heap buffer of
+     * the right size when it does not fit. The result is ready to write.
+     */
+    private static ByteBuffer encode(ForwarderMessage message, ByteBuffer buf, boolean compress) {
+        try {
+            HeaderCodec.encode(message, buf, compress);
+        } catch (BufferOverflowException e) {
+            buf = ByteBuffer.allocate(message.size() * 3 + 256);
+            HeaderCodec.encode(message, buf, compress);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Reads the whole connection into buf, moving to a larger heap buffer
+     * if the message does not fit. The result is ready to decode.
+     */
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (channel.read(buf) >= 0) {
+            if (!buf.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    // reads after the first start chars until buf is full or the end of input; -1 when buf is left empty
+    private static int fill(Reader source, char[] buf, int start) throws IOException {
+        int len = start;
+        while (len < buf.length) {
+            int n = source.read(buf, len, buf.length - len);
+            if (n < 0) break;
+            len += n;
+        }
+        return (len == 0) ? -1 : len;
+    }
+
+    /**
+     * Window of a transit stream: STREAM_WINDOW of its chunks may be queued
+     * here, up to STREAM_BACKLOG more wait in pending and each permit given
+     * back goes straight to the oldest of them.
+     */
+    static class TransitWindow extends Semaphore {
+        final LinkedList<ForwarderMessage> pending = new LinkedList<ForwarderMessage>();
+        long lastUsed;
+
+        TransitWindow() {
+            super(STREAM_WINDOW);
+        }
+
+        @Override
+        public void release() {
+            ForwarderMessage next;
+            synchronized (this) {
+                next = pending.poll();
+                if (next == null) {
+                    super.release();
+                    return;
+                }
+            }
+            sendChunk(next, this);
+        }
+    }
+
+    /**
+     * Forwards a transit chunk. Never waits, since it runs on the thread
+     * that reads everything the neighbor sends: while STREAM_WINDOW chunks
+     * of the same stream are queued here it is left in the stream's
+     * pending list, and dropped when that is full too.
+     */
+    static boolean forwardChunk(ForwarderMessage chunk) {
+        String key = chunk.from + "/" + chunk.stream;
+        TransitWindow window;
+        synchronized (streamWindows) {
+            long now = System.currentTimeMillis();
+            sweepStreamWindows(now);
+            // kept after the last chunk until idle, so late chunks do not start a new window
+            window = streamWindows.get(key);
+            if (window == null) {
+                window = new TransitWindow();
+                streamWindows.put(key, window);
+            }
+            window.lastUsed = now;
+        }
+        synchronized (window) {
+            // behind the ones already waiting, to keep the order
+            if (!window.pending.isEmpty() || !window.tryAcquire()) {
+                if (window.pending.size() >= STREAM_BACKLOG) {
+                    Setup.println("[ForwardingService.forwardChunk] Ventana del stream " + key + " llena, fragmento " +
+                            chunk.chunk + " descartado");
+                    return false;
+                }
+                window.pending.add(chunk);
+                return true;
+            }
+        }
+        return sendChunk(chunk, window);
+    }
+
+    // sends a transit chunk holding one permit of window
+    private static boolean sendChunk(ForwarderMessage chunk, TransitWindow window) {
+        chunk.window = window;
+        if (SendMessage(chunk)) return true;
+        chunk.done();
+        return false;
+    }
+
+    /**
+     * Forgets the windows of streams idle for STREAM_IDLE, finished or
+     * aborted. Called holding streamWindows, at most once a second.
+     */
+    private static void sweepStreamWindows(long now) {
+        if (now - streamWindowsSwept < 1000) return;
+        streamWindowsSwept = now;
+        Iterator<TransitWindow> it = streamWindows.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastUsed > STREAM_IDLE) it.remove();
+        }
+    }
+
+    /**
+     * Accounts for one more hop of a transit message. Returns false when
+     * the message has to be dropped: its TTL ran out or the recorded path
+     * shows it already went through this router.
+     */
+    static boolean countHop(ForwarderMessage message) {
+        if (--message.ttl <= 0) {
+            ttlExpired.incrementAndGet();
+            Setup.println("[ForwardingService.countHop] TTL agotado para " + message.id + " hacia " + message.to);
+            return false;
+        }
+        if (message.path != null) {
+            if (message.visited(Setup.ROUTER_NAME)) {
+                loopsDetected.incrementAndGet();
+                Setup.println("[ForwardingService.countHop] Ciclo detectado para " + message.id + ": " + message.path);
+                return false;
+            }
+            message.path += "," + Setup.ROUTER_NAME;
+        }
+        return true;
+    }
+
+    /**
+     * Called when a message could not be written to hop: sends it right
+     * away over the destination's precomputed alternate, or spools it when
+     * there is none. Returns true if the message was queued again.
+     */
+    static boolean reroute(String hop, ForwarderMessage message) {
+        if (message.isMulticast()) {
+            rerouteMulticast(hop, message);
+            return false;
+        }
+        String alt = RoutingService.backupHop(message.to, hop);
+        if (!alt.equalsIgnoreCase(hop)) {
+            Setup.println("[ForwardingService.reroute] " + hop + " no responde, desviando mensaje a " + message.to + " via " + alt);
+            if (getQueue(alt).offer(message)) {
+                rerouted.inc();
+                return true;
+            }
+        }
+        spool(message);
+        return false;
+    }
+
+    /**
+     * reroute for a multicast copy: each target gets its own alternate, the
+     * targets sharing one travel in one copy as in sendMulticast, and those
+     * without an alternate are spooled one by one under their own name.
+     * The message itself is left to the caller to finish.
+     */
+    private static void rerouteMulticast(String hop, ForwarderMessage message) {
+        LinkedHashMap<String, StringBuilder> branches = new LinkedHashMap<String, StringBuilder>();
+        for (String target : message.to.split(",")) {
+            target = target.trim();
+            if (target.length() == 0) continue;
+            String alt = RoutingService.backupHop(target, hop);
+            if (alt.equalsIgnoreCase(hop)) {
+                ForwarderMessage copy = message.copy(target);
+                spool(copy);
+                copy.done();
+                continue;
+            }
+            StringBuilder targets = branches.get(alt);
+            if (targets == null) {
+                branches.put(alt, new StringBuilder(target));
+            } else {
+                targets.append(',').append(target);
+            }
+        }
+        for (Map.Entry<String, StringBuilder> branch : branches.entrySet()) {
+            ForwarderMessage copy = message.copy(branch.getValue().toString());
+            if (branches.size() > 1) copy.id = message.id + ">" + branch.getKey();
+            Setup.println("[ForwardingService.reroute] " + hop + " no responde, desviando copia a " + copy.to + " via " + branch.getKey());
+            if (getQueue(branch.getKey()).offer(copy)) {
+                rerouted.inc();
+            } else {
+                for (String target : copy.to.split(",")) {
+                    ForwarderMessage single = message.copy(target);
+                    spool(single);
+                    single.done();
+                }
+                copy.done();
+            }
+        }
+    }
+
+    static final HashMap<String, MessageSpool> spools = new HashMap<String, MessageSpool>();
+    private static final File SPOOL_DIR = new File("spool");
+    private static boolean spoolsLoaded = false;
+    private static final AtomicBoolean replaying = new AtomicBoolean();
+
+    /**
+     * The spool of a destination, opened on first use. Only destinations
+     * the routing table knows get one, and at most Setup.SPOOL_FILES, so
+     * a typo or a bogus "To" read off the wire cannot create files at will.
+     * Returns null when none may be opened.
+     */
+    static MessageSpool getSpool(String to) {
+        synchronized (spools) {
+            MessageSpool spool = spools.get(to.toLowerCase());
+            if (spool != null) return spool;
+            if (!RoutingService.getSnapshot().contains(to)) {
+                Setup.println("[ForwardingService.getSpool] Destino desconocido " + to + ", sin spool");
+                return null;
+            }
+            if (spools.size() >= Setup.SPOOL_FILES) {
+                Setup.println("[ForwardingService.getSpool] Limite de " + Setup.SPOOL_FILES + " spools alcanzado, sin spool para " + to);
+                return null;
+            }
+            return openSpool(to);
+        }
+    }
+
+    // called holding spools
+    private static MessageSpool openSpool(String to) {
+        String key = to.toLowerCase();
+        try {
+            if (!SPOOL_DIR.exists()) SPOOL_DIR.mkdirs();
+            MessageSpool spool = new MessageSpool(to, new File(SPOOL_DIR, key.replaceAll("[^\\w.-]", "_") + ".spool"), Setup.SPOOL_SIZE);
+            // a spool left by a previous run knows the real name of its destination
+            spools.put(spool.getDestination().toLowerCase(), spool);
+            return spool;
+        } catch (IOException e) {
+            Setup.println("[ForwardingService.getSpool] No es posible abrir spool para " + to + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Keeps a message that could not be sent until its destination is
+     * reachable again. Returns false if spooling is off, the destination
+     * may not have a spool or its spool is full.
+     */
+    static boolean spool(ForwarderMessage message) {
+        if (!RouterConfig.get().spool) return false;
+        MessageSpool spool = getSpool(message.to);
+        if (spool == null) return false;
+        if (!spool.append(message, System.currentTimeMillis() + RouterConfig.get().spoolExpiry * 1000L)) {
+            Setup.println("[ForwardingService.spool] Spool lleno, mensaje a " + message.to + " descartado");
+            return false;
+        }
+        spooled.inc();
+        Setup.println("[ForwardingService.spool] Mensaje a " + message.to + " guardado en spool");
+        return true;
+    }
+
+    /**
+     * Resends, in the background, the spooled messages of every
+     * destination that has a route again over a hop not marked failed.
+     * Replays over the same hop back off (see MessageSpool.readyToReplay),
+     * so a stale route does not spool and replay them on every DV.
+     */
+    static void replaySpools() {
+        if (!RouterConfig.get().spool) return;
+        final ArrayList<MessageSpool> ready = new ArrayList<MessageSpool>();
+        synchronized (spools) {
+            if (!spoolsLoaded) {
+                // spools left by a previous run, already on disk, so opened even if not known yet
+                spoolsLoaded = true;
+                File[] files = SPOOL_DIR.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        String name = f.getName().replaceAll("\\.spool$", "");
+                        if (f.getName().endsWith(".spool") && !spools.containsKey(name)) openSpool(name);
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (MessageSpool spool : spools.values()) {
+                if (spool.isEmpty() || !RoutingService.hasRoute(spool.getDestination())) continue;
+                // a hop that is still failing would only send them back here
+                String hop = RoutingService.alternateHop(spool.getDestination(), null);
+                if (hop != null && spool.readyToReplay(hop, now)) ready.add(spool);
+            }
+        }
+        if (ready.isEmpty() || !replaying.compareAndSet(false, true)) return;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (MessageSpool spool : ready) {
+                        spool.replaying(System.currentTimeMillis());
+                        List<ForwarderMessage> messages = spool.takeAll();
+                        Setup.println("[ForwardingService.replaySpools] Reenviando " + messages.size() +
+                                " mensajes a " + spool.getDestination());
+                        for (ForwarderMessage m : messages) {
+                            SendMessage(m);
+                        }
+                    }
+                } finally {
+                    replaying.set(false);
+                }
+            }
+        }, "SpoolReplay");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Handles a message received from a neighbor, over the forwarding port
+     * or as a DATA frame on the routing connection.
+     */
+    static void receive(ForwarderMessage message) throws InterruptedException, IOException {
+        received.inc();
+        if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "<<Received from client>>\nFrom:%s To:%s\n", message.from, message.to);
+
+        if (message.id != null && !seenIds.firstSeen(message.id)) {
+            Setup.println("[ForwardingService.receive] Mensaje duplicado " + message.id + " descartado");
+            return;
+        }
+
+        if (!message.to.equalsIgnoreCase(Setup.ROUTER_NAME) && !countHop(message)) return;
+
+        if (message.isMulticast()) {
+            if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "<<Forwarding Incoming Multicast to %s from %s>>\n", message.to, message.from);
+            forwarded.inc();
+            SendMessage(message);
+        } else if (message.isChunk()) {
+            if (message.to.equalsIgnoreCase(Setup.ROUTER_NAME)) {
+                reassembler.accept(message);
+            } else {
+                forwardChunk(message);
+            }
+        } else if (message.to.equalsIgnoreCase(Setup.ROUTER_NAME)) {
+            // we are the target
+            if (!deliverLocal(message)) {
+                Setup.println("[ForwardingService.receive] Buzon lleno, mensaje de " + message.from + " descartado");
+            }
+        } else {
+            // forward message
+            if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "<<Forwarding Incoming Message to %s from %s>>\n%s\n", message.to, message.from, message.text);
+            forwarded.inc();
+            SendMessage(message);
+        }
+    }
+
+    static final HashMap<String, NextHopQueue> queues = new HashMap<String, NextHopQueue>();
+
+    static NextHopQueue getQueue(String hop) {
+        synchronized (queues) {
+            NextHopQueue queue = queues.get(hop);
+            if (queue == null) {
+                queue = new NextHopQueue(hop);
+                queues.put(hop, queue);
+                Thread t = new Thread(queue, "NextHopQueue-" + hop);
+                t.setDaemon(true);
+                t.start();
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Stops the queue of a neighbor that went down and sends what was
+     * still waiting in it over the alternates, or spools it.
+     */
+    static void removeQueue(String hop) {
+        NextHopQueue queue = null;
+        synchronized (queues) {
+            for (String key : new ArrayList<String>(queues.keySet())) {
+                if (key.equalsIgnoreCase(hop)) queue = queues.remove(key);
+            }
+        }
+        if (queue == null) return;
+        List<ForwarderMessage> pending = queue.stop();
+        Setup.println("[ForwardingService.removeQueue] Cola hacia " + hop + " cerrada, " + pending.size() + " mensajes pendientes");
+        for (ForwarderMessage m : pending) {
+            if (!reroute(hop, m)) m.done();
+        }
+    }
+
+    /**
+     * The queue of a hop if it exists, without starting one.
+     */
+    static NextHopQueue peekQueue(String hop) {
+        synchronized (queues) {
+            return queues.get(hop);
+        }
+    }
+
+    static Neighbor getNeighbor(String id) {
+        for (NbrCostPair nbr : Setup.nbrList) {
+            if (nbr.getNbr().getId().equalsIgnoreCase(id)) return nbr.getNbr();
+        }
+        return null;
+    }
+
+    /**
+     * Time from arrival to the write on the next hop; messages originated
+     * here are not counted.
+     */
+    private static void recordLatency(Neighbor nbr, ForwarderMessage message) {
+        if (message.arrivedAt != 0) {
+            nbr.getForwardLatency().record((System.nanoTime() - message.arrivedAt) / 1000);
+        }
+    }
+
+    /**
+     * Writes one message to the given next hop. Called from the hop's queue thread.
+     */
+    static boolean transmit(String hop, ForwarderMessage message) {
+        Neighbor nbr = getNeighbor(hop);
+        if (nbr == null) {
+            Setup.println("[ForwardingService.transmit] Vecino desconocido " + hop);
+            return false;
+        }
+        InetAddress addr = nbr.getAddr();
+        PooledBuffer pooled = BufferPool.shared.acquire();
+        SocketChannel channel = null;
+        try {
+            ByteBuffer out = encode(message, pooled.buffer(), Compression.use(nbr, message.text.length()));
+            int len = out.remaining();
+            if (RouterConfig.get().multiplex && nbr.acceptsMultiplex() && nbr.getSession().sendData(out)) {
+                sent.inc();
+                sentMultiplexed.inc();
+                bytesOut.add(len);
+                recordLatency(nbr, message);
+                if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "[ForwardingService.transmit] Mensaje a %s enviado por la sesion con %s", message.to, hop);
+                return true;
+            }
+            if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "[ForwardingService.transmit] Enviando mensaje a %s via %s", message.to, addr.getHostAddress());
+            channel = SocketChannel.open(new InetSocketAddress(addr, Setup.FORWARDING_PORT));
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            sent.inc();
+            bytesOut.add(len);
+            recordLatency(nbr, message);
+        } catch (Exception e) {
+            sendFailed.inc();
+            Setup.println("[ForwardingService.transmit] No es posible enviar mensaje al destino " + e.getMessage());
+            return false;
+        } finally {
+            pooled.release();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
         }
-        //JOptionPane.showMessageDialog(null, "El mensaje ha sido enviado a " + message.to);
         return true;
     }
 
@@ -82,7 +775,10 @@ public class ForwardingService implements Runnable {
 
     private void openServerSocket() {
         try {
-            this.serverSocket = new ServerSocket(this.serverPort, 0, address);
+            // opened through a channel so accepted sockets can be read into pooled buffers
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.socket().bind(new InetSocketAddress(address, this.serverPort));
+            this.serverSocket = channel.socket();
             isRunning = true;
         } catch (IOException e) {
             isRunning = false;
@@ -142,59 +838,32 @@ public class ForwardingService implements Runnable {
         public ForwarderWorker(Socket clientSocket, String serverText) {
             this.clientSocket = clientSocket;
             this.serverText = serverText;
-            Setup.println("[ForwardingService] Conexion abierta desde: " +
+            if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "[ForwardingService] Conexion abierta desde: %s",
                     clientSocket.getRemoteSocketAddress());
         }
 
         public void run() {
+            long arrivedAt = System.nanoTime();
+            PooledBuffer pooled = BufferPool.shared.acquire();
             try {
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-
-                //get From:<Name Router>
-                String line = in.readLine();
-                Setup.println("<<Received from client>>\n" + line + "\n");
-                //tokenizer From
-                StringTokenizer st = new StringTokenizer(line, ":");
-                //ignore "From"
-                st.nextToken();
-                //get name of Router
-                String fromId = st.nextToken();
-
-                //get "To:<type>"
-                line = in.readLine();
-                Setup.println("<<Received from client>>\n" + line + "\n");
-                //tokenizer To
-                st = new StringTokenizer(line, ":");
-                //ignore "To"
-                st.nextToken();
-                //get target
-                String toId = st.nextToken();
-                //get "Msg:msg"
-                line = in.readLine();
-                Setup.println("<<Received from client>>\n" + line + "\n");
-                //tokenizer Msg
-                st = new StringTokenizer(line, ":");
-                //ignore "To"
-                st.nextToken();
-                String msg = st.nextToken("\n");
-                while((line = in.readLine()) != null) {
-                    msg += line + "\n";
-                }
-                in.close();
-
-                if (toId.equalsIgnoreCase(Setup.ROUTER_NAME)) {
-                    // we are the target
-                    Setup.println("<<Received Incoming Message to ME from " + fromId + ">>\n" + msg + "\n");
-                } else {
-                    // forward message
-                    Setup.println("<<Forwarding Incoming Message to " + toId + " from " + fromId + ">>\n" + msg + "\n");
-                    SendMessage(new ForwarderMessage(fromId, toId, msg));
-                }
-
-            } catch (IOException e) {
+                ForwarderMessage message = HeaderCodec.decode(readFully(clientSocket.getChannel(), pooled.buffer()));
+                message.arrivedAt = arrivedAt;
+                pooled.release();
+                pooled = null;
+                receive(message);
+            } catch (InterruptedException e) {
+                Setup.println("[ForwardingService.run] Interrumpido");
+            } catch (Exception e) {
                 //report exception somewhere.
                 //e.printStackTrace();
                 Setup.println("[ForwardingService.run] Error: " + e.getMessage());
+            } finally {
+                if (pooled != null) pooled.release();
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
             }
         }
     }
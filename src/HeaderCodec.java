@@ -0,0 +1,350 @@
+/**
+ * HeaderCodec.java -- reads and writes forwarding messages directly from
+ * and to ByteBuffers.
+ *
+ * The wire format is the same text as ForwarderMessage.toString():
+ * "Key:value" header lines followed by "Msg:" and the message text up to
+ * the end of the connection. Keys are matched in place and numbers are
+ * parsed and printed digit by digit, so no line Strings, readers or
+ * tokenizers are created; only the message fields themselves.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+public class HeaderCodec {
+    private static final ThreadLocal<ByteBuffer> raw = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        }
+    };
+
+    private static final ThreadLocal<ByteBuffer> inflated = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BufferPool.BUFFER_SIZE);
+        }
+    };
+
+    private static final ThreadLocal<char[]> scratch = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[BufferPool.BUFFER_SIZE];
+        }
+    };
+
+    //region encoding
+
+    /**
+     * Writes the message to out.
+     *
+     * @throws java.nio.BufferOverflowException if it does not fit
+     */
+    public static void encode(ForwarderMessage m, ByteBuffer out) {
+        encode(m, out, false);
+    }
+
+    /**
+     * Same as encode(m, out), with the text deflated when compress is set.
+     */
+    public static void encode(ForwarderMessage m, ByteBuffer out, boolean compress) {
+        if (m.id != null) putHeader(out, "Id", m.id);
+        putHeader(out, "From", m.from);
+        putHeader(out, "To", m.to);
+        putAscii(out, "Priority:");
+        putInt(out, m.priority);
+        out.put((byte) '\n');
+        putAscii(out, "TTL:");
+        putInt(out, m.ttl);
+        out.put((byte) '\n');
+        if (m.path != null) putHeader(out, "Path", m.path);
+        if (m.type != null) putHeader(out, "Type", m.type);
+        if (m.session != null) putHeader(out, "Session", m.session);
+        if (m.seq >= 0) {
+            putAscii(out, "Seq:");
+            putInt(out, m.seq);
+            out.put((byte) '\n');
+        }
+        if (m.type != null || m.ack >= 0) {
+            putAscii(out, "Ack:");
+            putInt(out, m.ack);
+            out.put((byte) '\n');
+        }
+        if (m.sack != null) putHeader(out, "Sack", m.sack);
+        if (m.stream != null) {
+            putHeader(out, "Stream", m.stream);
+            putAscii(out, "Chunk:");
+            putInt(out, m.chunk);
+            if (m.last) putAscii(out, ":last");
+            out.put((byte) '\n');
+        }
+        if (compress) {
+            putHeader(out, "Encoding", Compression.DEFLATE);
+            ByteBuffer text = raw.get();
+            if (text.capacity() < m.text.length() * 3) {
+                text = ByteBuffer.allocate(m.text.length() * 3);
+                raw.set(text);
+            }
+            text.clear();
+            putUtf8(text, m.text);
+            putAscii(out, "Msg:");
+            Compression.deflate(text.array(), 0, text.position(), out);
+        } else {
+            putAscii(out, "Msg:");
+            putUtf8(out, m.text);
+        }
+        out.put((byte) '\n');
+    }
+
+    public static void putHeader(ByteBuffer out, String key, CharSequence value) {
+        putAscii(out, key);
+        out.put((byte) ':');
+        putUtf8(out, value);
+        out.put((byte) '\n');
+    }
+
+    public static void putAscii(ByteBuffer out, CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            out.put((byte) s.charAt(i));
+        }
+    }
+
+    public static void putInt(ByteBuffer out, int v) {
+        if (v < 0) {
+            out.put((byte) '-');
+            v = -v;
+        }
+        int div = 1;
+        while (v / div >= 10) div *= 10;
+        for (; div > 0; div /= 10) {
+            out.put((byte) ('0' + (v / div) % 10));
+        }
+    }
+
+    public static void putUtf8(ByteBuffer out, CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            int c = s.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, s.charAt(++i));
+            }
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (c < 0x10000) {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xF0 | (c >> 18)));
+                out.put((byte) (0x80 | ((c >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    //endregion
+
+    //region decoding
+
+    /**
+     * Parses a complete message between in.position() and in.limit().
+     */
+    public static ForwarderMessage decode(ByteBuffer in) throws IOException {
+        String id = null;
+        String from = null;
+        String to = null;
+        int priority = ForwarderMessage.PRIORITY_NORMAL;
+        int ttl = RouterConfig.get().messageTtl;
+        String path = null;
+        String type = null;
+        String session = null;
+        int seq = -1;
+        int ack = -1;
+        String sack = null;
+        String stream = null;
+        int chunk = 0;
+        boolean last = false;
+        String text = null;
+        boolean deflated = false;
+
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int sep = indexOf(in, start, (byte) ':');
+            if (sep < 0) throw new IOException("Encabezado invalido");
+            if (keyIs(in, start, sep, "Msg")) {
+                int end = in.limit();
+                if (end > sep + 1 && in.get(end - 1) == '\n') end--;
+                text = deflated ? getInflated(in, sep + 1, end) : getUtf8(in, sep + 1, end);
+                in.position(in.limit());
+                break;
+            }
+            int eol = indexOf(in, sep + 1, (byte) '\n');
+            if (eol < 0) throw new IOException("Encabezado incompleto");
+            int end = (eol > sep + 1 && in.get(eol - 1) == '\r') ? eol - 1 : eol;
+            if (keyIs(in, start, sep, "Id")) {
+                id = getUtf8(in, sep + 1, end);
+            } else if (keyIs(in, start, sep, "From")) {
+                from = getUtf8(in, sep + 1, end);
+            } else if (keyIs(in, start, sep, "To")) {
+                to = getUtf8(in, sep + 1, end);
+            } else if (keyIs(in, start, sep, "Priority")) {
+                priority = getInt(in, sep + 1, end, ForwarderMessage.PRIORITY_NORMAL);
+            } else if (keyIs(in, start, sep, "TTL")) {
+                ttl = getInt(in, sep + 1, end, RouterConfig.get().messageTtl);
+            } else if (keyIs(in, start, sep, "Path")) {
+                path = getUtf8(in, sep + 1, end);
+            } else if (keyIs(in, start, sep, "Type")) {
+                type = getUtf8(in, sep + 1, end);
+            } else if (keyIs(in, start, sep, "Session")) {
+                session = getUtf8(in, sep + 1, end);
+            } else if (keyIs(in, start, sep, "Seq")) {
+                seq = getInt(in, sep + 1, end, -1);
+            } else if (keyIs(in, start, sep, "Ack")) {
+                ack = getInt(in, sep + 1, end, -1);
+            } else if (keyIs(in, start, sep, "Sack")) {
+                sack = getUtf8(in, sep + 1, end);
+            } else if (keyIs(in, start, sep, "Encoding")) {
+                deflated = end - sep - 1 == Compression.DEFLATE.length() && keyIs(in, sep + 1, end, Compression.DEFLATE);
+                if (!deflated) throw new IOException("Codificacion no soportada");
+            } else if (keyIs(in, start, sep, "Stream")) {
+                stream = getUtf8(in, sep + 1, end);
+            } else if (keyIs(in, start, sep, "Chunk")) {
+                int colon = indexOf(in, sep + 1, end, (byte) ':');
+                last = colon >= 0;
+                chunk = getInt(in, sep + 1, last ? colon : end, 0);
+            }
+            in.position(eol + 1);
+        }
+        if (from == null || to == null || text == null) throw new IOException("Mensaje incompleto");
+
+        ForwarderMessage m = new ForwarderMessage(from, to, text, priority);
+        m.id = id;
+        m.ttl = ttl;
+        m.path = path;
+        m.type = type;
+        m.session = session;
+        m.seq = seq;
+        m.ack = ack;
+        m.sack = sack;
+        if (stream != null) {
+            m.stream = stream;
+            m.chunk = chunk;
+            m.last = last;
+        }
+        return m;
+    }
+
+    private static int indexOf(ByteBuffer in, int from, byte b) {
+        return indexOf(in, from, in.limit(), b);
+    }
+
+    private static int indexOf(ByteBuffer in, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (in.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    private static boolean keyIs(ByteBuffer in, int start, int end, String key) {
+        if (end - start != key.length()) return false;
+        for (int i = 0; i < key.length(); i++) {
+            if (Character.toLowerCase((char) in.get(start + i)) != Character.toLowerCase(key.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static int getInt(ByteBuffer in, int start, int end, int def) {
+        if (start >= end) return def;
+        boolean neg = in.get(start) == '-';
+        int v = 0;
+        for (int i = neg ? start + 1 : start; i < end; i++) {
+            int d = in.get(i) - '0';
+            if (d < 0 || d > 9) return def;
+            v = v * 10 + d;
+        }
+        return neg ? -v : v;
+    }
+
+    private static String getInflated(ByteBuffer in, int start, int end) throws IOException {
+        ByteBuffer compressed = raw.get();
+        if (compressed.capacity() < end - start) {
+            compressed = ByteBuffer.allocate(end - start);
+            raw.set(compressed);
+        }
+        compressed.clear();
+        ByteBuffer body = in.duplicate();
+        body.limit(end).position(start);
+        compressed.put(body);
+        ByteBuffer out = inflated.get();
+        out.clear();
+        try {
+            out = Compression.inflate(compressed.array(), 0, compressed.position(), out);
+        } catch (DataFormatException e) {
+            throw new IOException("Mensaje comprimido invalido", e);
+        }
+        inflated.set(out);
+        return getUtf8(out, 0, out.position());
+    }
+
+    private static String getUtf8(ByteBuffer in, int start, int end) {
+        char[] chars = scratch.get();
+        if (chars.length < end - start) {
+            chars = new char[end - start];
+            scratch.set(chars);
+        }
+        int n = 0;
+        int i = start;
+        while (i < end) {
+            int b = in.get(i++) & 0xFF;
+            int c;
+            int need = 0; // continuation bytes
+            int lo = 0x80; // range of the first one, which rules out overlong
+            int hi = 0xBF; // forms, surrogates and values above U+10FFFF
+            if (b < 0x80) {
+                c = b;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                c = b & 0x1F;
+                need = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                c = b & 0x0F;
+                need = 2;
+                if (b == 0xE0) lo = 0xA0;
+                if (b == 0xED) hi = 0x9F;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                c = b & 0x07;
+                need = 3;
+                if (b == 0xF0) lo = 0x90;
+                if (b == 0xF4) hi = 0x8F;
+            } else {
+                c = 0xFFFD; // continuation byte or invalid lead byte
+            }
+            // an incomplete sequence becomes one U+FFFD; decoding resumes at
+            // the first byte that could not continue it
+            for (int k = 0; k < need; k++) {
+                int x = (i < end) ? in.get(i) & 0xFF : -1;
+                if (x < lo || x > hi) {
+                    c = 0xFFFD;
+                    break;
+                }
+                c = (c << 6) | (x & 0x3F);
+                i++;
+                lo = 0x80;
+                hi = 0xBF;
+            }
+            if (c >= 0x10000) {
+                chars[n++] = Character.highSurrogate(c);
+                chars[n++] = Character.lowSurrogate(c);
+            } else {
+                chars[n++] = (char) c;
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    //endregion
+}
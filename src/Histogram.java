@@ -0,0 +1,123 @@
+/**
+ * Histogram.java -- fixed-memory latency histogram with log-linear buckets.
+ *
+ * Like HdrHistogram, every power of two is split into SUB_BUCKETS equal
+ * buckets, so a value is kept with about 6% relative error from 1 up to
+ * Long.MAX_VALUE in a fixed array of counters. record() only increments
+ * atomics and never allocates, so it can sit on the forwarding and routing
+ * paths. rotate() closes an interval: it moves the counts into a Snapshot,
+ * which the percentiles are read from, and starts again from zero.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private volatile Snapshot last = new Snapshot(new long[BUCKETS], 0, 0);
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long total;
+        private final long max;
+        private final long sum;
+
+        Snapshot(long[] counts, long max, long sum) {
+            this.counts = counts;
+            long n = 0;
+            for (long c : counts) n += c;
+            this.total = n;
+            this.max = max;
+            this.sum = sum;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return total == 0 ? 0 : sum / total;
+        }
+
+        /**
+         * The value q (0..1) of the recorded values are at or below, as the
+         * upper end of its bucket. 0 when nothing was recorded.
+         */
+        public long percentile(double q) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upper(i), max);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + total + " p50=" + percentile(0.5) + " p99=" + percentile(0.99) +
+                    " p999=" + percentile(0.999) + " max=" + max;
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Counts since the last rotate(); they keep changing while being read.
+     */
+    public Snapshot current() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+        return new Snapshot(copy, max.get(), sum.get());
+    }
+
+    /**
+     * Ends the interval: its counts become getLast() and recording starts
+     * from zero.
+     */
+    public Snapshot rotate() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) copy[i] = counts.getAndSet(i, 0);
+        Snapshot s = new Snapshot(copy, max.getAndSet(0), sum.getAndSet(0));
+        last = s;
+        return s;
+    }
+
+    public Snapshot getLast() {
+        return last;
+    }
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upper(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * LinkMonitor.java -- measures the link to one neighbor.
+ *
+ * With every keepalive an Echo carrying a sequence number is sent over the
+ * routing connection and the neighbor answers with an EchoReply over its
+ * own connection back to us. Replies give round trip samples that are
+ * smoothed like TCP's SRTT; an echo still unanswered when the next one is
+ * sent counts as lost. cost() turns both into a link cost for the
+ * distance vector computation.
+ */
+
+public class LinkMonitor {
+    // cost added when every echo is lost
+    private static final int LOSS_PENALTY = 20;
+    // replies needed before the measured cost is used
+    private static final int MIN_SAMPLES = 3;
+
+    private int seq = 0;
+    private int pending = -1;
+    private long pendingSince;
+    private double srtt = -1; // ms
+    private double loss = 0; // moving average, 0..1
+    private int samples = 0;
+    private long echoes = 0;
+    private long replies = 0;
+
+    /**
+     * Sequence number for the next echo; call right before writing it.
+     */
+    public synchronized int nextEcho() {
+        if (pending >= 0) {
+            loss = (7 * loss + 1) / 8;
+        }
+        pending = ++seq;
+        pendingSince = System.currentTimeMillis();
+        echoes++;
+        return pending;
+    }
+
+    /**
+     * Records a reply. Returns false for late or unknown sequence numbers.
+     */
+    public synchronized boolean onReply(int seq) {
+        if (seq != pending) return false;
+        long rtt = System.currentTimeMillis() - pendingSince;
+        pending = -1;
+        srtt = (srtt < 0) ? rtt : (7 * srtt + rtt) / 8;
+        loss = 7 * loss / 8;
+        samples++;
+        replies++;
+        return true;
+    }
+
+    public synchronized boolean ready() {
+        return samples >= MIN_SAMPLES;
+    }
+
+    /**
+     * One unit per RouterConfig.costRttUnit ms of smoothed RTT, at least 1, plus
+     * up to LOSS_PENALTY for lost echoes.
+     */
+    public synchronized int cost() {
+        long rttCost = Math.max(1, Math.round(srtt / RouterConfig.get().costRttUnit));
+        long cost = rttCost + Math.round(loss * LOSS_PENALTY);
+        return (int) Math.min(cost, RoutingService.INFINITY - 1);
+    }
+
+    /**
+     * Hysteresis: only changes of at least RouterConfig.costHysteresis percent of
+     * the current cost, and never of a single unit, are worth a routing
+     * update.
+     */
+    public static boolean significant(int current, int measured) {
+        int diff = Math.abs(measured - current);
+        return diff >= 2 && diff * 100 >= current * RouterConfig.get().costHysteresis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "srtt=" + Math.round(srtt) + "ms loss=" + Math.round(loss * 100) + "% echoes=" + echoes +
+                " replies=" + replies;
+    }
+}
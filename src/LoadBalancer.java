@@ -0,0 +1,81 @@
+/**
+ * LoadBalancer.java -- steers new flows to the least loaded next hop.
+ *
+ * Each candidate hop is scored by its outbound queue depth and the time
+ * its recent sends took; a new flow goes to the lowest score and then
+ * stays pinned to that hop while it keeps sending, so messages of one flow
+ * are never reordered. Flows idle for FLOW_IDLE are forgotten and may be
+ * placed elsewhere next time.
+ */
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LoadBalancer {
+    private static final long FLOW_IDLE = 10 * 1000;
+    private static final int MAX_FLOWS = 10000;
+    private static final long MIN_LATENCY = 1000; // micros, for hops without samples yet
+
+    private final ConcurrentHashMap<String, Flow> flows = new ConcurrentHashMap<String, Flow>();
+
+    private static class Flow {
+        volatile String hop;
+        volatile long lastUsed;
+    }
+
+    /**
+     * Picks the hop for the flow (from, to) among candidates, which are
+     * ordered by path cost. Returns null if all of them have failed.
+     */
+    public String select(String from, String to, List<String> candidates) {
+        String key = from.toLowerCase() + ">" + to.toLowerCase();
+        long now = System.currentTimeMillis();
+        Flow flow = flows.get(key);
+        if (flow != null && now - flow.lastUsed < FLOW_IDLE &&
+                candidates.contains(flow.hop) && !RoutingService.isFailed(flow.hop)) {
+            flow.lastUsed = now;
+            return flow.hop;
+        }
+
+        String best = null;
+        long bestScore = Long.MAX_VALUE;
+        for (String hop : candidates) {
+            if (RoutingService.isFailed(hop)) continue;
+            NextHopQueue queue = ForwardingService.peekQueue(hop);
+            long latency = MIN_LATENCY;
+            int depth = 0;
+            if (queue != null) {
+                latency = Math.max(MIN_LATENCY, queue.getLatency());
+                depth = queue.depth();
+            }
+            // expected wait for one more message; ties keep the cheaper path
+            long score = (depth + 1) * latency;
+            if (score < bestScore) {
+                best = hop;
+                bestScore = score;
+            }
+        }
+        if (best == null) return null;
+
+        if (flow == null) {
+            if (flows.size() >= MAX_FLOWS) expire(now);
+            flow = new Flow();
+            flows.put(key, flow);
+        }
+        flow.hop = best;
+        flow.lastUsed = now;
+        return best;
+    }
+
+    private void expire(long now) {
+        Iterator<Flow> it = flows.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastUsed >= FLOW_IDLE) it.remove();
+        }
+    }
+
+    public int flowCount() {
+        return flows.size();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * LocalInbox.java -- delivery path for messages addressed to this router.
+ *
+ * Forwarder threads put messages into a bounded lock-free ring and never
+ * wait; one inbox thread drains it in batches and hands each batch to the
+ * registered subscribers. Until the first subscriber registers (and
+ * whenever none is registered) messages wait in the ring; when the ring is
+ * full new messages are dropped and counted.
+ *
+ * "java LocalInbox [messages]" measures the throughput of the inbox with
+ * one producer and a subscriber that only counts.
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class LocalInbox implements Runnable {
+    private static final int BATCH = 256;
+
+    private final RingBuffer<ForwarderMessage> ring;
+    private final CopyOnWriteArrayList<MessageSubscriber> subscribers = new CopyOnWriteArrayList<MessageSubscriber>();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread thread;
+    private volatile boolean sleeping = false;
+
+    public LocalInbox(int capacity) {
+        ring = new RingBuffer<ForwarderMessage>(capacity);
+    }
+
+    public void subscribe(MessageSubscriber subscriber) {
+        subscribers.add(subscriber);
+        start();
+    }
+
+    public void unsubscribe(MessageSubscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Queues a message for the subscribers. Returns false if the inbox is full.
+     */
+    public boolean deliver(ForwarderMessage message) {
+        if (!ring.offer(message)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        // the thread is started by the first subscriber
+        Thread t = thread;
+        if (t != null && sleeping) LockSupport.unpark(t);
+        return true;
+    }
+
+    private synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this, "LocalInbox");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        ArrayList<ForwarderMessage> batch = new ArrayList<ForwarderMessage>(BATCH);
+        while (true) {
+            if (subscribers.isEmpty() || ring.drainTo(batch, BATCH) == 0) {
+                sleeping = true;
+                if (ring.size() == 0) LockSupport.parkNanos(10 * 1000 * 1000);
+                sleeping = false;
+                continue;
+            }
+            for (MessageSubscriber s : subscribers) {
+                try {
+                    s.onMessages(batch);
+                } catch (RuntimeException e) {
+                    Setup.println("[LocalInbox.run] Error en suscriptor: " + e);
+                }
+            }
+            delivered.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+
+    public int depth() {
+        return ring.size();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final long n = args.length > 0 ? Long.parseLong(args[0]) : 4000000;
+        final AtomicLong received = new AtomicLong();
+        LocalInbox inbox = new LocalInbox(64 * 1024);
+        inbox.subscribe(new MessageSubscriber() {
+            public void onMessages(java.util.List<ForwarderMessage> batch) {
+                received.addAndGet(batch.size());
+            }
+        });
+        ForwarderMessage m = new ForwarderMessage("a", "b", "x");
+        long start = System.nanoTime();
+        for (long i = 0; i < n; i++) {
+            while (!inbox.ring.offer(m)) Thread.yield(); // wait for room instead of dropping
+            if (inbox.sleeping) LockSupport.unpark(inbox.thread);
+        }
+        while (received.get() < n) Thread.sleep(1);
+        long ms = (System.nanoTime() - start) / 1000000;
+        System.out.println(n + " mensajes en " + ms + " ms (" + (ms == 0 ? n : n * 1000 / ms) + " msg/s)");
+    }
+}
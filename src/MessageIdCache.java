@@ -0,0 +1,71 @@
+/**
+ * MessageIdCache.java -- remembers the ids of recently seen forwarded
+ * messages so copies that loop back or are re-sent can be dropped.
+ *
+ * Entries expire after TTL and the cache never holds more than MAX_SIZE
+ * ids; the oldest ids are evicted first.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageIdCache {
+    private static final int MAX_SIZE = 10000;
+    private static final long TTL = 60 * 1000;
+
+    private final ConcurrentHashMap<String, Long> seen = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private static class Entry {
+        final String id;
+        final Long ts;
+
+        Entry(String id, Long ts) {
+            this.id = id;
+            this.ts = ts;
+        }
+    }
+
+    /**
+     * Records the id. Returns false if it was already seen within TTL.
+     */
+    public boolean firstSeen(String id) {
+        Long now = System.currentTimeMillis();
+        Long prev = seen.putIfAbsent(id, now);
+        if (prev != null) {
+            if (now - prev < TTL) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+            // expired entry still waiting for eviction: take it over
+            if (!seen.replace(id, prev, now)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+        }
+        order.add(new Entry(id, now));
+        evict(now);
+        return true;
+    }
+
+    private void evict(long now) {
+        Entry head;
+        while ((head = order.peek()) != null) {
+            if (now - head.ts < TTL && seen.size() <= MAX_SIZE) break;
+            if (order.remove(head)) {
+                // only if it was not seen again since
+                seen.remove(head.id, head.ts);
+            }
+        }
+    }
+
+    public int size() {
+        return seen.size();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+}
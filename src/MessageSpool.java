@@ -0,0 +1,196 @@
+/**
+ * MessageSpool.java -- append-only, memory-mapped store for messages that
+ * could not be delivered to one destination.
+ *
+ * File layout: [magic][write position][destination name, 64 bytes]
+ * followed by records of [length][expires at (ms)][message in wire
+ * format]. The write position is only advanced once a record is complete,
+ * so a spool survives a restart. When the file is full the expired records
+ * are compacted away; if that frees no room new messages are dropped.
+ * Expired records are also skipped when the spool is replayed.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MessageSpool {
+    private static final int MAGIC = 0x53504f4c; // "SPOL"
+    private static final int NAME = 64;
+    private static final int HEADER = 8 + NAME;
+    private static final int RECORD_HEADER = 12;
+    private static final long MIN_BACKOFF = 1000; // ms between replays over the same hop
+    private static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+    private String destination;
+    private final MappedByteBuffer map;
+    private long spooled = 0;
+    private long dropped = 0;
+    private long expired = 0;
+    private long replayed = 0;
+    // replay backoff: reset when the destination's next hop changes
+    private String replayHop = null;
+    private long replayAt = 0;
+    private long backoff = MIN_BACKOFF;
+
+    public MessageSpool(String destination, File file, int size) throws IOException {
+        this.destination = destination;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+        int pos = map.getInt(4);
+        if (map.getInt(0) != MAGIC || pos < HEADER || pos > size) {
+            byte[] name = destination.getBytes("UTF-8");
+            int len = Math.min(name.length, NAME - 1);
+            map.put(8, (byte) len);
+            for (int i = 0; i < len; i++) map.put(9 + i, name[i]);
+            map.putInt(4, HEADER);
+            map.putInt(0, MAGIC);
+        } else {
+            byte[] name = new byte[map.get(8) & 0xFF];
+            for (int i = 0; i < name.length; i++) name[i] = map.get(9 + i);
+            this.destination = new String(name, "UTF-8");
+            if (pos > HEADER) {
+                Setup.println("[MessageSpool] " + (pos - HEADER) + " bytes pendientes hacia " + this.destination);
+            }
+        }
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    /**
+     * True if the spool may be replayed over hop now: right away when the
+     * route moved to another hop, otherwise once the backoff since the
+     * last replay over hop has passed.
+     */
+    public synchronized boolean readyToReplay(String hop, long now) {
+        if (!hop.equalsIgnoreCase(replayHop)) {
+            replayHop = hop;
+            replayAt = 0;
+            backoff = MIN_BACKOFF;
+        }
+        return now >= replayAt;
+    }
+
+    /**
+     * Called when a replay starts: doubles the wait before the next one
+     * over the same hop, in case the messages end up here again.
+     */
+    public synchronized void replaying(long now) {
+        replayAt = now + backoff;
+        backoff = Math.min(MAX_BACKOFF, backoff * 2);
+    }
+
+    public synchronized boolean append(ForwarderMessage message, long expiresAt) {
+        if (write(message, expiresAt)) return true;
+        // a destination that stays down fills its spool with expired records
+        if (compact(System.currentTimeMillis()) && write(message, expiresAt)) return true;
+        dropped++;
+        return false;
+    }
+
+    private boolean write(ForwarderMessage message, long expiresAt) {
+        int pos = map.getInt(4);
+        try {
+            ByteBuffer record = map.duplicate();
+            record.position(pos + RECORD_HEADER);
+            HeaderCodec.encode(message, record);
+            int len = record.position() - pos - RECORD_HEADER;
+            map.putInt(pos, len);
+            map.putLong(pos + 4, expiresAt);
+            map.putInt(4, pos + RECORD_HEADER + len); // commit
+            spooled++;
+            return true;
+        } catch (IllegalArgumentException e) {
+            // position past the end: spool full
+        } catch (BufferOverflowException e) {
+            // record does not fit
+        }
+        return false;
+    }
+
+    /**
+     * Moves the records that have not expired to the front of the file,
+     * keeping their order. Returns true if any space was freed.
+     */
+    private boolean compact(long now) {
+        int end = map.getInt(4);
+        int pos = HEADER;
+        int to = HEADER;
+        while (pos + RECORD_HEADER <= end) {
+            int len = map.getInt(pos);
+            if (len <= 0 || pos + RECORD_HEADER + len > end) break;
+            int size = RECORD_HEADER + len;
+            if (map.getLong(pos + 4) < now) {
+                expired++;
+            } else {
+                if (to != pos) {
+                    byte[] record = new byte[size];
+                    ByteBuffer src = map.duplicate();
+                    src.position(pos);
+                    src.get(record);
+                    ByteBuffer dst = map.duplicate();
+                    dst.position(to);
+                    dst.put(record);
+                }
+                to += size;
+            }
+            pos += size;
+        }
+        if (to == end) return false;
+        map.putInt(4, to);
+        return true;
+    }
+
+    public synchronized boolean isEmpty() {
+        return map.getInt(4) == HEADER;
+    }
+
+    /**
+     * Removes every record and returns the ones that have not expired.
+     */
+    public synchronized List<ForwarderMessage> takeAll() {
+        ArrayList<ForwarderMessage> result = new ArrayList<ForwarderMessage>();
+        int end = map.getInt(4);
+        long now = System.currentTimeMillis();
+        int pos = HEADER;
+        while (pos + RECORD_HEADER <= end) {
+            int len = map.getInt(pos);
+            long expiresAt = map.getLong(pos + 4);
+            if (len <= 0 || pos + RECORD_HEADER + len > end) break;
+            if (expiresAt < now) {
+                expired++;
+            } else {
+                ByteBuffer record = map.duplicate();
+                record.limit(pos + RECORD_HEADER + len);
+                record.position(pos + RECORD_HEADER);
+                try {
+                    result.add(HeaderCodec.decode(record));
+                } catch (IOException e) {
+                    Setup.println("[MessageSpool.takeAll] Registro invalido hacia " + destination + ": " + e.getMessage());
+                }
+            }
+            pos += RECORD_HEADER + len;
+        }
+        map.putInt(4, HEADER);
+        replayed += result.size();
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Spool " + destination + " bytes=" + (map.getInt(4) - HEADER) + " spooled=" + spooled +
+                " replayed=" + replayed + " expired=" + expired + " dropped=" + dropped;
+    }
+}
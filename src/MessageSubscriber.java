@@ -0,0 +1,11 @@
+/**
+ * Receives messages addressed to this router from the LocalInbox.
+ *
+ * Called from the inbox thread with batches of messages in arrival order;
+ * the list is reused after the call returns.
+ */
+import java.util.List;
+
+public interface MessageSubscriber {
+    void onMessages(List<ForwarderMessage> batch);
+}
@@ -0,0 +1,333 @@
+/**
+ * Metrics.java -- counters and gauges of the router's internals.
+ *
+ * Counters are LongAdders: each thread increments its own cell, so
+ * counting on the forwarding and routing paths costs no contention.
+ * Gauges read a value (a queue depth, a counter kept elsewhere) only when
+ * someone asks. Everything is registered by name in one sorted registry
+ * and exposed through JMX as the attributes of RouterV2:type=Metrics.
+ */
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+    public static abstract class Metric {
+        private final String name;
+        private final String labels;
+        private final String help;
+
+        Metric(String name, String help) {
+            this(name, null, help);
+        }
+
+        /**
+         * @param labels Prometheus style, e.g. neighbor="b",quantile="0.99"
+         *               (see label); null for none
+         */
+        Metric(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getLabels() {
+            return labels;
+        }
+
+        /**
+         * Name and labels: the registry key and the JMX attribute name.
+         */
+        public String getKey() {
+            return labels == null ? name : name + "{" + labels + "}";
+        }
+
+        public String getHelp() {
+            return help;
+        }
+
+        public abstract long value();
+
+        public abstract boolean isCounter();
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder adder = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void inc() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long value() {
+            return adder.sum();
+        }
+
+        public boolean isCounter() {
+            return true;
+        }
+    }
+
+    public static abstract class Gauge extends Metric {
+        private final boolean counter;
+
+        /**
+         * @param counter true when the value read only ever grows (a counter
+         *                kept elsewhere), false for levels such as depths
+         */
+        public Gauge(String name, String help, boolean counter) {
+            super(name, help);
+            this.counter = counter;
+        }
+
+        public Gauge(String name, String labels, String help, boolean counter) {
+            super(name, labels, help);
+            this.counter = counter;
+        }
+
+        public boolean isCounter() {
+            return counter;
+        }
+    }
+
+    private static final ConcurrentSkipListMap<String, Metric> registry = new ConcurrentSkipListMap<String, Metric>();
+    private static boolean exported = false;
+
+    /**
+     * The counter with this name, created on first use.
+     */
+    public static Counter counter(String name, String help) {
+        Metric m = registry.get(name);
+        if (m == null) {
+            Metric old = registry.putIfAbsent(name, m = new Counter(name, help));
+            if (old != null) m = old;
+        }
+        return (Counter) m;
+    }
+
+    public static void register(Gauge gauge) {
+        registry.put(gauge.getKey(), gauge);
+    }
+
+    /**
+     * Every metric by key; the metrics of one name with different labels
+     * are next to each other.
+     */
+    public static Map<String, Metric> all() {
+        return registry;
+    }
+
+    /**
+     * key="value", with the value escaped for the Prometheus text format.
+     */
+    public static String label(String key, String value) {
+        return key + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    /**
+     * Gauges over state that already has its own counters or sizes.
+     * Called once at startup.
+     */
+    public static void registerDefaults() {
+        register(new Gauge("broadcast.sockets", "Conexiones de ruteo abiertas hacia vecinos", false) {
+            public long value() {
+                return BroadcastingService.sockets.size();
+            }
+        });
+        register(new Gauge("forwarding.queue.depth", "Mensajes en las colas de salida", false) {
+            public long value() {
+                long depth = 0;
+                synchronized (ForwardingService.queues) {
+                    for (NextHopQueue q : ForwardingService.queues.values()) depth += q.depth();
+                }
+                return depth;
+            }
+        });
+        register(new Gauge("forwarding.ttl.expired", "Mensajes descartados por TTL", true) {
+            public long value() {
+                return ForwardingService.ttlExpired.get();
+            }
+        });
+        register(new Gauge("forwarding.loops", "Mensajes descartados por ciclo", true) {
+            public long value() {
+                return ForwardingService.loopsDetected.get();
+            }
+        });
+        register(new Gauge("forwarding.duplicates", "Mensajes duplicados descartados", true) {
+            public long value() {
+                return ForwardingService.seenIds.getDuplicates();
+            }
+        });
+        register(new Gauge("forwarding.inbox.delivered", "Mensajes entregados localmente", true) {
+            public long value() {
+                return ForwardingService.inbox.getDelivered();
+            }
+        });
+        register(new Gauge("forwarding.inbox.dropped", "Mensajes locales descartados por buzon lleno", true) {
+            public long value() {
+                return ForwardingService.inbox.getDropped();
+            }
+        });
+        register(new Gauge("forwarding.buffer.misses", "Buffers pedidos con el pool vacio", true) {
+            public long value() {
+                return BufferPool.shared.getMisses();
+            }
+        });
+        register(new Gauge("reliable.acked", "Mensajes confiables confirmados", true) {
+            public long value() {
+                return ReliableMessaging.acked.get();
+            }
+        });
+        register(new Gauge("reliable.retransmits", "Retransmisiones", true) {
+            public long value() {
+                return ReliableMessaging.retransmits.get();
+            }
+        });
+        register(new Gauge("reliable.given.up", "Mensajes confiables abandonados", true) {
+            public long value() {
+                return ReliableMessaging.givenUp.get();
+            }
+        });
+        registerLatency();
+    }
+
+    //region Latency
+
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILES = {"0.5", "0.99", "0.999"};
+
+    /**
+     * Gauges routing.dv.latency.us and forwarding.latency.us, labeled by
+     * neighbor and quantile, and a timer that closes the histograms'
+     * interval every LATENCY_INTERVAL secs and logs the percentiles at DEBUG.
+     */
+    private static void registerLatency() {
+        for (NbrCostPair ncp : Setup.nbrList) {
+            Neighbor nbr = ncp.getNbr();
+            String neighbor = label("neighbor", nbr.getId().toLowerCase());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                String labels = neighbor + "," + label("quantile", QUANTILES[i]);
+                register(new LatencyGauge("routing.dv.latency.us", labels,
+                        "Microsegundos entre leer un DV de un vecino y actualizar la tabla",
+                        nbr.getDvLatency(), PERCENTILES[i]));
+                register(new LatencyGauge("forwarding.latency.us", labels,
+                        "Microsegundos entre recibir un mensaje y escribirlo hacia un vecino",
+                        nbr.getForwardLatency(), PERCENTILES[i]));
+            }
+        }
+        Timer timer = new Timer("Metrics-latency", true);
+        long period = Setup.LATENCY_INTERVAL * 1000L;
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                for (NbrCostPair ncp : Setup.nbrList) {
+                    Neighbor nbr = ncp.getNbr();
+                    Histogram.Snapshot dv = nbr.getDvLatency().rotate();
+                    Histogram.Snapshot fwd = nbr.getForwardLatency().rotate();
+                    if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "[Metrics.latency] DV de %s (us): %s", nbr.getId(), dv);
+                    if (Setup.isLoggable(Setup.FORWARDING, Setup.DEBUG)) Setup.log(Setup.FORWARDING, Setup.DEBUG, "[Metrics.latency] Envio hacia %s (us): %s", nbr.getId(), fwd);
+                }
+            }
+        }, period, period);
+    }
+
+    private static class LatencyGauge extends Gauge {
+        private final Histogram histogram;
+        private final double percentile;
+
+        LatencyGauge(String name, String labels, String help, Histogram histogram, double percentile) {
+            super(name, labels, help, false);
+            this.histogram = histogram;
+            this.percentile = percentile;
+        }
+
+        public long value() {
+            return histogram.getLast().percentile(percentile);
+        }
+    }
+
+    //endregion
+
+    //region JMX
+
+    /**
+     * Registers RouterV2:type=Metrics with the platform MBean server.
+     */
+    public static synchronized void export() {
+        if (exported) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                    new ObjectName("RouterV2:type=Metrics"));
+            exported = true;
+        } catch (JMException e) {
+            Setup.println("[Metrics.export] No es posible registrar el MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One read-only attribute per metric; the set of attributes follows the
+     * registry, so metrics registered later show up too.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Metric m = registry.get(attribute);
+            if (m == null) throw new AttributeNotFoundException(attribute);
+            return m.value();
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                Metric m = registry.get(a);
+                if (m != null) list.add(new Attribute(a, m.value()));
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Las metricas son de solo lectura: " + attribute.getName());
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[registry.size()];
+            int i = 0;
+            for (Metric m : registry.values()) {
+                if (i == attrs.length) break; // registered while we were copying
+                attrs[i++] = new MBeanAttributeInfo(m.getKey(), "long", m.getHelp(), true, false, false);
+            }
+            if (i < attrs.length) {
+                MBeanAttributeInfo[] fit = new MBeanAttributeInfo[i];
+                System.arraycopy(attrs, 0, fit, 0, i);
+                attrs = fit;
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Metricas del ruteador", attrs, null, null, null);
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,187 @@
+/**
+ * MetricsServer.java -- metrics and routing table over HTTP.
+ *
+ * A small embedded server (com.sun.net.httpserver), started only when
+ * Setup.METRICS_PORT is set and bound to Setup.METRICS_ADDRESS (loopback
+ * unless configured), since anyone who reaches it can read the topology:
+ *   GET /metrics  every Metrics entry in the Prometheus text format
+ *   GET /routes   the current RoutingSnapshot as JSON
+ * Responses are rendered at most once per CACHE_TTL ms (the routes once
+ * per snapshot version) and the same bytes are served to every scrape in
+ * between, so a scraper polling many routers never makes one walk its
+ * queues or wait on the routing threads.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.List;
+
+public class MetricsServer {
+    private static final long CACHE_TTL = 1000; // ms
+    private static final String PREFIX = "routerv2_";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static HttpServer server = null;
+
+    private static byte[] metricsPage = null;
+    private static long metricsRenderedAt = 0;
+    private static byte[] routesPage = null;
+    private static RoutingSnapshot routesRendered = null;
+
+    public static synchronized void start(InetAddress address, int port) {
+        if (server != null) return;
+        try {
+            server = HttpServer.create(new InetSocketAddress(address, port), 16);
+        } catch (IOException e) {
+            Setup.println("[MetricsServer.start] No es posible abrir " + address.getHostAddress() + ":" + port + ": " + e.getMessage());
+            return;
+        }
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                reply(exchange, "text/plain; version=0.0.4; charset=utf-8", metrics());
+            }
+        });
+        server.createContext("/routes", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                reply(exchange, "application/json; charset=utf-8", routes());
+            }
+        });
+        server.start();
+        InetSocketAddress bound = server.getAddress();
+        Setup.println("[MetricsServer.start] Metricas en http://" + bound.getAddress().getHostAddress() + ":" + bound.getPort() + "/metrics");
+    }
+
+    public static synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        server = null;
+    }
+
+    private static void reply(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            if (!path.equals(exchange.getHttpContext().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    //region Rendering
+
+    private static synchronized byte[] metrics() {
+        long now = System.currentTimeMillis();
+        if (metricsPage != null && now - metricsRenderedAt < CACHE_TTL) return metricsPage;
+
+        StringBuilder sb = new StringBuilder(4096);
+        String family = null;
+        for (Metrics.Metric m : Metrics.all().values()) {
+            String name = PREFIX + sanitize(m.getName());
+            if (m.isCounter()) name += "_total";
+            if (!name.equals(family)) {
+                // HELP and TYPE once for all the label sets of a metric
+                family = name;
+                sb.append("# HELP ").append(name).append(' ').append(escapeHelp(m.getHelp())).append('\n');
+                sb.append("# TYPE ").append(name).append(m.isCounter() ? " counter\n" : " gauge\n");
+            }
+            sb.append(name);
+            if (m.getLabels() != null) sb.append('{').append(m.getLabels()).append('}');
+            sb.append(' ').append(m.value()).append('\n');
+        }
+        metricsPage = sb.toString().getBytes(UTF8);
+        metricsRenderedAt = now;
+        return metricsPage;
+    }
+
+    private static synchronized byte[] routes() {
+        RoutingSnapshot snapshot = RoutingService.getSnapshot();
+        if (snapshot == routesRendered) return routesPage;
+
+        StringBuilder sb = new StringBuilder(256 + snapshot.getRows().size() * 96);
+        sb.append("{\"router\":").append(quote(Setup.ROUTER_NAME));
+        sb.append(",\"version\":").append(snapshot.getVersion());
+        sb.append(",\"createdAt\":").append(snapshot.getCreatedAt());
+        sb.append(",\"routes\":[");
+        List<RoutingSnapshot.Row> rows = snapshot.getRows();
+        for (int i = 0; i < rows.size(); i++) {
+            RoutingSnapshot.Row r = rows.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("\n{\"destination\":").append(quote(r.destination));
+            if (r.cost >= RoutingService.INFINITY) sb.append(",\"cost\":null");
+            else sb.append(",\"cost\":").append(r.cost);
+            sb.append(",\"nextHop\":").append(r.nextHop == null ? "null" : quote(r.nextHop));
+            sb.append(",\"hopAddress\":").append(r.hopAddress == null ? "null" : quote(r.hopAddress));
+            if (r.linkCost >= RoutingService.INFINITY) sb.append(",\"linkCost\":null");
+            else sb.append(",\"linkCost\":").append(r.linkCost);
+            sb.append(",\"alternates\":[");
+            if (r.alternates != null && r.alternates.length() > 0) {
+                String[] alternates = r.alternates.split(",");
+                for (int j = 0; j < alternates.length; j++) {
+                    if (j > 0) sb.append(',');
+                    sb.append(quote(alternates[j].trim()));
+                }
+            }
+            sb.append("]}");
+        }
+        sb.append("]}\n");
+        routesPage = sb.toString().getBytes(UTF8);
+        routesRendered = snapshot;
+        return routesPage;
+    }
+
+    /**
+     * Metric names may only hold [a-zA-Z0-9_:]; dots become underscores.
+     */
+    private static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == ':';
+            sb.append(ok ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    //endregion
+}
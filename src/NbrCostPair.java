@@ -12,7 +12,7 @@
 
 public class NbrCostPair {
     private Neighbor nbr;
-    private int cost;
+    private volatile int cost; // measured when RouterConfig.dynamicCosts
 
     public NbrCostPair(Neighbor nbr, int cost) {
         this.nbr = nbr;
@@ -16,6 +16,12 @@ public class Neighbor {
     private int port; // this neighbor's port
     private HashMap<String, Integer> dv; // this neighbor's row in the network cost table
     public int UpdateCount = 0;
+    private volatile boolean deflate = false; // announced Encoding:deflate in its HELLO
+    private volatile boolean multiplex = false; // announced Multiplex:DATA in its HELLO
+    private final LinkMonitor monitor = new LinkMonitor();
+    private final NeighborSession session = new NeighborSession(this);
+    private final Histogram dvLatency = new Histogram(); // micros from reading its DV to the table commit
+    private final Histogram forwardLatency = new Histogram(); // micros from arrival to the write to it
 
     /////////////////////////////////////////////////////////////
     // Constructor:
@@ -43,4 +49,36 @@ public class Neighbor {
         return dv;
     }
 
+    public boolean acceptsDeflate() {
+        return deflate;
+    }
+
+    public void setAcceptsDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    public boolean acceptsMultiplex() {
+        return multiplex;
+    }
+
+    public void setAcceptsMultiplex(boolean multiplex) {
+        this.multiplex = multiplex;
+    }
+
+    public NeighborSession getSession() {
+        return session;
+    }
+
+    public LinkMonitor getMonitor() {
+        return monitor;
+    }
+
+    public Histogram getDvLatency() {
+        return dvLatency;
+    }
+
+    public Histogram getForwardLatency() {
+        return forwardLatency;
+    }
+
 }
@@ -0,0 +1,186 @@
+/**
+ * NeighborSession.java -- shares the routing connection to one neighbor
+ * between control messages and forwarded data (RouterConfig.multiplex).
+ *
+ * A data frame is "Type:DATA" followed by the message in wire format,
+ * Base64 encoded on a single line the same way ZDV carries tables. Control
+ * messages (DV, KeepAlive, Echo) go first: a data writer steps aside while
+ * a control writer is waiting for the connection. Messages above
+ * ForwardingService.STREAM_THRESHOLD are already cut into chunks, which
+ * bounds how long one data frame can hold a control message back.
+ * Received frames are forwarded on a thread of their own, never on the
+ * reader of the routing connection.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class NeighborSession {
+    public static final String DATA = "DATA";
+    private static final int INBOUND_QUEUE = 1024; // received DATA frames waiting to be forwarded
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private final Neighbor nbr;
+    private final Object lock = new Object();
+    // guarded by lock: a writer owns the connection, control writers waiting for it
+    private boolean writing = false;
+    private int controlWaiting = 0;
+    private byte[] frame = new byte[0]; // reused by the writer that owns the connection
+    private int frameLength;
+    private ThreadPoolExecutor inbound = null;
+    private final AtomicLong controlFrames = new AtomicLong();
+    private final AtomicLong dataFrames = new AtomicLong();
+    private final AtomicLong dataBytes = new AtomicLong();
+    private final AtomicLong inboundDropped = new AtomicLong();
+
+    public NeighborSession(Neighbor nbr) {
+        this.nbr = nbr;
+    }
+
+    /**
+     * Writes a routing message on sock, ahead of any data frame waiting.
+     */
+    public void sendControl(Socket sock, byte[] msg) throws IOException {
+        synchronized (lock) {
+            controlWaiting++;
+            try {
+                while (writing) lock.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrumpido esperando la conexion con " + nbr.getId());
+            } finally {
+                controlWaiting--;
+            }
+            writing = true;
+        }
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write(msg);
+            out.flush();
+            controlFrames.incrementAndGet();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Sends a message in wire format over the routing connection. Returns
+     * false if there is no connection to the neighbor or the write failed,
+     * so the caller can fall back to the forwarding port.
+     */
+    public boolean sendData(ByteBuffer wire) {
+        Socket sock = BroadcastingService.sockets.get(nbr);
+        if (sock == null) return false;
+        synchronized (lock) {
+            try {
+                while (writing || controlWaiting > 0) lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            writing = true;
+        }
+        int len = wire.remaining();
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write(frame(wire), 0, frameLength);
+            out.flush();
+        } catch (IOException e) {
+            Setup.println("[NeighborSession.sendData] Conexion con " + nbr.getId() + " perdida: " + e.getMessage());
+            BroadcastingService.sockets.remove(nbr);
+            return false;
+        } finally {
+            release();
+        }
+        dataFrames.incrementAndGet();
+        dataBytes.addAndGet(len);
+        return true;
+    }
+
+    private void release() {
+        synchronized (lock) {
+            writing = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Builds the DATA frame for wire in the reused frame array, Base64
+     * encoding straight from the buffer. Called owning the connection.
+     */
+    private byte[] frame(ByteBuffer wire) {
+        String header = "From:" + Setup.ROUTER_NAME + "\nType:" + DATA + "\n";
+        int n = wire.remaining();
+        int size = header.length() + (n + 2) / 3 * 4 + 1;
+        if (frame.length < size) frame = new byte[Math.max(size, 2 * frame.length)];
+        int p = 0;
+        for (int i = 0; i < header.length(); i++) frame[p++] = (byte) header.charAt(i);
+        int i = wire.position();
+        int end = wire.limit();
+        while (end - i >= 3) {
+            int b = (wire.get(i) & 0xff) << 16 | (wire.get(i + 1) & 0xff) << 8 | (wire.get(i + 2) & 0xff);
+            frame[p++] = BASE64[b >>> 18];
+            frame[p++] = BASE64[(b >>> 12) & 0x3f];
+            frame[p++] = BASE64[(b >>> 6) & 0x3f];
+            frame[p++] = BASE64[b & 0x3f];
+            i += 3;
+        }
+        if (end - i > 0) {
+            int b = (wire.get(i) & 0xff) << 16 | (end - i == 2 ? (wire.get(i + 1) & 0xff) << 8 : 0);
+            frame[p++] = BASE64[b >>> 18];
+            frame[p++] = BASE64[(b >>> 12) & 0x3f];
+            frame[p++] = end - i == 2 ? BASE64[(b >>> 6) & 0x3f] : (byte) '=';
+            frame[p++] = '=';
+        }
+        frame[p++] = '\n';
+        frameLength = p;
+        return frame;
+    }
+
+    /**
+     * Hands a message received in a DATA frame to this session's inbound
+     * thread, so the routing connection's reader never waits on forwarding
+     * (a full stream window, a slow queue) and keeps reading KeepAlives
+     * and DVs. Frames are forwarded in the order they arrived; when
+     * INBOUND_QUEUE of them are already waiting the message is dropped.
+     */
+    public void receive(final ForwarderMessage message) {
+        synchronized (lock) {
+            if (inbound == null) {
+                inbound = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(INBOUND_QUEUE), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NeighborSession-" + nbr.getId());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        try {
+            inbound.execute(new Runnable() {
+                public void run() {
+                    try {
+                        ForwardingService.receive(message);
+                    } catch (Exception e) {
+                        Setup.println("[NeighborSession.receive] Error: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inboundDropped.incrementAndGet();
+            Setup.println("[NeighborSession.receive] Cola de entrada de " + nbr.getId() + " llena, mensaje descartado");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Session " + nbr.getId() + " control=" + controlFrames + " data=" + dataFrames +
+                " bytes=" + dataBytes + " dropped=" + inboundDropped;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * NextHopQueue.java -- outbound queue for one next hop.
+ *
+ * Messages are kept in one FIFO per traffic class (see ForwarderMessage
+ * PRIORITY_*) and served with deficit round robin, so small control
+ * messages are not stuck behind bulk transfers while bulk traffic still
+ * gets the spare capacity of the link.
+ *
+ * Each queue has its own sender thread; SendMessage only enqueues. The
+ * queue and its thread go away when the hop is declared down.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+public class NextHopQueue implements Runnable {
+    // bytes credited to each class per round (control, normal, bulk)
+    private static final int[] QUANTUM = {8 * 1500, 4 * 1500, 1500};
+    // max messages waiting per class
+    private static final int CAPACITY = 1000;
+
+    private final String hop;
+    private final ArrayList<LinkedList<ForwarderMessage>> classes;
+    private final int[] deficit = new int[ForwarderMessage.PRIORITY_CLASSES];
+    private int current = 0;
+    private boolean fresh = true;
+    private int total = 0;
+    private boolean stopped = false;
+    // moving average of the time one transmit takes, in micros
+    private volatile long latency = 0;
+
+    // per-class counters
+    private final long[] enqueued = new long[ForwarderMessage.PRIORITY_CLASSES];
+    private final long[] sent = new long[ForwarderMessage.PRIORITY_CLASSES];
+    private final long[] failed = new long[ForwarderMessage.PRIORITY_CLASSES];
+    private final long[] dropped = new long[ForwarderMessage.PRIORITY_CLASSES];
+    private final long[] bytes = new long[ForwarderMessage.PRIORITY_CLASSES];
+
+    public NextHopQueue(String hop) {
+        this.hop = hop;
+        classes = new ArrayList<LinkedList<ForwarderMessage>>(ForwarderMessage.PRIORITY_CLASSES);
+        for (int i = 0; i < ForwarderMessage.PRIORITY_CLASSES; i++) {
+            classes.add(new LinkedList<ForwarderMessage>());
+        }
+    }
+
+    public String getHop() {
+        return hop;
+    }
+
+    public synchronized boolean offer(ForwarderMessage message) {
+        int c = message.priority;
+        if (stopped || classes.get(c).size() >= CAPACITY) {
+            dropped[c]++;
+            Setup.println("[NextHopQueue.offer] Cola llena hacia " + hop + ", mensaje descartado (clase " + c + ")");
+            return false;
+        }
+        classes.get(c).add(message);
+        enqueued[c]++;
+        total++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Deficit round robin: each non-empty class gets its quantum once per
+     * round and may send while the head message fits in its deficit.
+     */
+    private synchronized ForwarderMessage take() throws InterruptedException {
+        while (true) {
+            if (stopped) return null;
+            if (total == 0) {
+                wait();
+                continue;
+            }
+            LinkedList<ForwarderMessage> q = classes.get(current);
+            if (q.isEmpty()) {
+                deficit[current] = 0;
+                nextClass();
+                continue;
+            }
+            if (fresh) {
+                deficit[current] += QUANTUM[current];
+                fresh = false;
+            }
+            int size = q.peek().size();
+            if (size <= deficit[current]) {
+                deficit[current] -= size;
+                total--;
+                return q.poll();
+            }
+            nextClass();
+        }
+    }
+
+    private void nextClass() {
+        current = (current + 1) % classes.size();
+        fresh = true;
+    }
+
+    public synchronized int depth() {
+        return total;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Stops the sender thread and returns the messages still waiting, so
+     * the caller can send them another way.
+     */
+    public synchronized List<ForwarderMessage> stop() {
+        stopped = true;
+        ArrayList<ForwarderMessage> pending = new ArrayList<ForwarderMessage>(total);
+        for (LinkedList<ForwarderMessage> q : classes) {
+            pending.addAll(q);
+            q.clear();
+        }
+        total = 0;
+        notifyAll();
+        return pending;
+    }
+
+    public void run() {
+        try {
+            ForwarderMessage message;
+            while ((message = take()) != null) {
+                long start = System.nanoTime();
+                boolean ok = ForwardingService.transmit(hop, message);
+                if (ok) {
+                    long micros = (System.nanoTime() - start) / 1000;
+                    latency = (latency == 0) ? micros : (7 * latency + micros) / 8;
+                }
+                if (ok || !ForwardingService.reroute(hop, message)) {
+                    message.done();
+                }
+                synchronized (this) {
+                    if (ok) {
+                        sent[message.priority]++;
+                        bytes[message.priority] += message.size();
+                    } else {
+                        failed[message.priority]++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Setup.println("[NextHopQueue.run] Cola hacia " + hop + " interrumpida");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("Queue ").append(hop).append(" depth=").append(total)
+                .append(" latency=").append(latency).append("us\n");
+        for (int c = 0; c < classes.size(); c++) {
+            result.append("  class ").append(c)
+                    .append(": queued=").append(classes.get(c).size())
+                    .append(" enqueued=").append(enqueued[c])
+                    .append(" sent=").append(sent[c])
+                    .append(" failed=").append(failed[c])
+                    .append(" dropped=").append(dropped[c])
+                    .append(" bytes=").append(bytes[c])
+                    .append("\n");
+        }
+        return result.toString();
+    }
+}
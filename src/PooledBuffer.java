@@ -0,0 +1,42 @@
+/**
+ * PooledBuffer.java -- reference counted slice of a BufferPool slab.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledBuffer {
+    private final BufferPool pool; // null for buffers allocated on a pool miss
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger();
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    void reset() {
+        refCnt.set(1);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public PooledBuffer retain() {
+        if (refCnt.getAndIncrement() <= 0) {
+            refCnt.getAndDecrement();
+            throw new IllegalStateException("Buffer ya liberado");
+        }
+        return this;
+    }
+
+    public void release() {
+        int n = refCnt.decrementAndGet();
+        if (n == 0) {
+            if (pool != null) pool.recycle(this);
+        } else if (n < 0) {
+            throw new IllegalStateException("Buffer liberado dos veces");
+        }
+    }
+}
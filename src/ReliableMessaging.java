@@ -0,0 +1,317 @@
+/**
+ * ReliableMessaging.java -- optional end-to-end acknowledged delivery.
+ *
+ * The sender numbers messages per destination (Session/Seq headers) and
+ * keeps up to WINDOW of them outstanding, so messages are pipelined
+ * instead of sent stop-and-wait. The destination answers every data
+ * message its LocalInbox accepted with a Type:ACK message carrying the highest in-order sequence
+ * received (Ack) and the out-of-order ones above it (Sack). Only the
+ * messages that are neither acked nor sacked when their RTO expires are
+ * sent again, with a new message id so duplicate suppression along the
+ * path lets them through. After MAX_RETRIES the sender gives up on a
+ * message; data messages carry in Ack the sequence below which nothing is
+ * outstanding, so the receiver stops waiting for the ones given up on.
+ *
+ * Messages longer than ForwardingService.STREAM_THRESHOLD go as a chunked
+ * stream, which has its own flow control but no end-to-end
+ * acknowledgement: they are sent without Session/Seq, not reliably.
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReliableMessaging {
+    public static final String ACK = "ACK";
+
+    private static final int WINDOW = 32;
+    private static final int MAX_SACK = 16;
+    private static final int MAX_RETRIES = 8;
+    private static final long INITIAL_RTO = 1000;
+    private static final long MIN_RTO = 200;
+    private static final long MAX_RTO = 10000;
+    private static final long TICK = 100;
+    // a sender gives up well before this, so an idle receiver can be forgotten (ms)
+    private static final long RECEIVER_IDLE = 10 * 60 * 1000;
+
+    // changes on every start so receivers do not mix up sequence numbers of different runs
+    static final String session = Long.toString(System.currentTimeMillis(), 36);
+
+    private static final HashMap<String, Sender> senders = new HashMap<String, Sender>();
+    private static final HashMap<String, Receiver> receivers = new HashMap<String, Receiver>();
+    private static long receiversSwept = 0;
+    private static Timer timer = null;
+
+    static final AtomicLong acked = new AtomicLong();
+    static final AtomicLong retransmits = new AtomicLong();
+    static final AtomicLong givenUp = new AtomicLong();
+    static final AtomicLong duplicates = new AtomicLong();
+
+    private static class Outstanding {
+        ForwarderMessage message;
+        long sentAt;
+        int retries = 0;
+    }
+
+    private static class Sender {
+        final String to;
+        int nextSeq = 0;
+        final TreeMap<Integer, Outstanding> outstanding = new TreeMap<Integer, Outstanding>();
+        long srtt = -1;
+        long rto = INITIAL_RTO;
+
+        Sender(String to) {
+            this.to = to;
+        }
+    }
+
+    private static class Receiver {
+        int cumulative = -1;
+        final TreeSet<Integer> received = new TreeSet<Integer>();
+        long lastUsed;
+    }
+
+    //region sending side
+
+    /**
+     * Sends a message that the destination has to acknowledge. Blocks while
+     * WINDOW messages to the same destination are still unacknowledged.
+     */
+    public static boolean send(ForwarderMessage message) throws InterruptedException {
+        if (isStream(message)) return ForwardingService.SendMessage(message);
+        Sender s = sender(message.to);
+        synchronized (s) {
+            while (s.outstanding.size() >= WINDOW) {
+                s.wait();
+            }
+            number(s, message);
+        }
+        return ForwardingService.SendMessage(message);
+    }
+
+    /**
+     * Same as send, but returns false at once instead of waiting when the
+     * window to the destination is full. For callers that must not block,
+     * such as the event thread.
+     */
+    public static boolean offer(ForwarderMessage message) {
+        if (isStream(message)) return ForwardingService.SendMessage(message);
+        Sender s = sender(message.to);
+        synchronized (s) {
+            if (s.outstanding.size() >= WINDOW) return false;
+            number(s, message);
+        }
+        return ForwardingService.SendMessage(message);
+    }
+
+    /**
+     * Messages long enough to be sent as a stream are not numbered: their
+     * chunks carry no Session/Seq, so they would never be acknowledged.
+     */
+    private static boolean isStream(ForwarderMessage message) {
+        return !message.isChunk() && message.text.length() > ForwardingService.STREAM_THRESHOLD;
+    }
+
+    private static Sender sender(String to) {
+        synchronized (senders) {
+            String key = to.toLowerCase();
+            Sender s = senders.get(key);
+            if (s == null) {
+                s = new Sender(to);
+                senders.put(key, s);
+            }
+            if (timer == null) {
+                timer = new Timer("ReliableMessaging", true);
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        checkTimeouts();
+                    }
+                }, TICK, TICK);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Assigns the next sequence number; called holding s.
+     */
+    private static void number(Sender s, ForwarderMessage message) {
+        message.session = session;
+        message.ack = base(s);
+        message.seq = s.nextSeq++;
+        Outstanding o = new Outstanding();
+        o.message = message;
+        o.sentAt = System.currentTimeMillis();
+        s.outstanding.put(message.seq, o);
+    }
+
+    /**
+     * Highest sequence number below which nothing is outstanding any more:
+     * every message up to it was either acknowledged or given up. Data
+     * messages carry it in Ack so the receiver can skip the holes left by
+     * messages given up on.
+     */
+    private static int base(Sender s) {
+        return (s.outstanding.isEmpty() ? s.nextSeq : s.outstanding.firstKey()) - 1;
+    }
+
+    /**
+     * Handles an ACK addressed to this router.
+     */
+    public static void onAck(ForwarderMessage ack) {
+        if (!session.equals(ack.session)) return; // for a previous run
+        Sender s;
+        synchronized (senders) {
+            s = senders.get(ack.from.toLowerCase());
+        }
+        if (s == null) return;
+        long now = System.currentTimeMillis();
+        synchronized (s) {
+            Outstanding sample = null;
+            Iterator<Outstanding> it = s.outstanding.headMap(ack.ack, true).values().iterator();
+            while (it.hasNext()) {
+                Outstanding o = it.next();
+                if (o.retries == 0) sample = o;
+                it.remove();
+                acked.incrementAndGet();
+            }
+            if (ack.sack != null && ack.sack.length() > 0) {
+                for (String seq : ack.sack.split(",")) {
+                    Outstanding o = s.outstanding.remove(Integer.valueOf(seq));
+                    if (o != null) {
+                        if (o.retries == 0) sample = o;
+                        acked.incrementAndGet();
+                    }
+                }
+            }
+            if (sample != null) {
+                // only first transmissions give an unambiguous round trip
+                long rtt = now - sample.sentAt;
+                s.srtt = (s.srtt < 0) ? rtt : (7 * s.srtt + rtt) / 8;
+                s.rto = Math.min(MAX_RTO, Math.max(MIN_RTO, 2 * s.srtt));
+            }
+            s.notifyAll();
+        }
+    }
+
+    private static void checkTimeouts() {
+        ArrayList<Sender> all;
+        synchronized (senders) {
+            all = new ArrayList<Sender>(senders.values());
+        }
+        long now = System.currentTimeMillis();
+        for (Sender s : all) {
+            ArrayList<ForwarderMessage> resend = new ArrayList<ForwarderMessage>();
+            synchronized (s) {
+                Iterator<Outstanding> it = s.outstanding.values().iterator();
+                while (it.hasNext()) {
+                    Outstanding o = it.next();
+                    if (now - o.sentAt < s.rto) continue;
+                    if (o.retries >= MAX_RETRIES) {
+                        it.remove();
+                        givenUp.incrementAndGet();
+                        Setup.println("[ReliableMessaging] Sin confirmacion de " + s.to + " para seq " + o.message.seq + ", descartado");
+                        continue;
+                    }
+                    o.retries++;
+                    o.sentAt = now;
+                    ForwarderMessage copy = o.message.copy(o.message.to);
+                    copy.id = null;
+                    copy.ack = base(s);
+                    resend.add(copy);
+                }
+                if (!resend.isEmpty()) {
+                    s.rto = Math.min(MAX_RTO, s.rto * 2);
+                }
+                s.notifyAll();
+            }
+            for (ForwarderMessage m : resend) {
+                retransmits.incrementAndGet();
+                ForwardingService.SendMessage(m);
+            }
+        }
+    }
+
+    //endregion
+
+    //region receiving side
+
+    /**
+     * Hands a numbered message addressed to this router to the inbox and
+     * acknowledges it. A message the inbox has no room for is neither
+     * recorded nor acknowledged, so the sender's RTO sends it again; a
+     * duplicate is only acknowledged again. Returns false if the inbox was
+     * full.
+     */
+    public static boolean onData(ForwarderMessage message, LocalInbox inbox) {
+        String key = message.from.toLowerCase() + "/" + message.session;
+        long now = System.currentTimeMillis();
+        Receiver r;
+        synchronized (receivers) {
+            sweepReceivers(now);
+            r = receivers.get(key);
+            if (r == null) {
+                r = new Receiver();
+                receivers.put(key, r);
+            }
+            r.lastUsed = now;
+        }
+        boolean fresh;
+        ForwarderMessage ack = new ForwarderMessage(Setup.ROUTER_NAME, message.from, "", ForwarderMessage.PRIORITY_CONTROL);
+        ack.type = ACK;
+        ack.session = message.session;
+        synchronized (r) {
+            fresh = message.seq > r.cumulative && !r.received.contains(message.seq);
+            // delivered holding r, so a retransmission arriving meanwhile is seen as a duplicate
+            if (fresh && !inbox.deliver(message)) return false;
+            if (fresh) r.received.add(message.seq);
+            if (message.ack > r.cumulative) {
+                // the sender gave up on everything missing up to message.ack
+                r.received.headSet(message.ack, true).clear();
+                r.cumulative = message.ack;
+            }
+            while (r.received.remove(r.cumulative + 1)) {
+                r.cumulative++;
+            }
+            ack.ack = r.cumulative;
+            StringBuilder sack = new StringBuilder();
+            int n = 0;
+            for (Integer seq : r.received) {
+                if (n++ == MAX_SACK) break;
+                if (sack.length() > 0) sack.append(',');
+                sack.append(seq);
+            }
+            if (sack.length() > 0) ack.sack = sack.toString();
+        }
+        if (!fresh) duplicates.incrementAndGet();
+        ForwardingService.SendMessage(ack);
+        return true;
+    }
+
+    /**
+     * Forgets the receivers of senders idle for RECEIVER_IDLE, such as the
+     * sessions of routers that restarted. Called holding receivers, at most
+     * once a minute.
+     */
+    private static void sweepReceivers(long now) {
+        if (now - receiversSwept < 60 * 1000) return;
+        receiversSwept = now;
+        Iterator<Receiver> it = receivers.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastUsed > RECEIVER_IDLE) it.remove();
+        }
+    }
+
+    //endregion
+
+    public static int outstanding(String to) {
+        Sender s;
+        synchronized (senders) {
+            s = senders.get(to.toLowerCase());
+        }
+        if (s == null) return 0;
+        synchronized (s) {
+            return s.outstanding.size();
+        }
+    }
+}
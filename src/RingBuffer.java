@@ -0,0 +1,75 @@
+/**
+ * RingBuffer.java -- bounded lock-free queue for many producers and a
+ * single consumer.
+ *
+ * Producers claim a slot with a CAS on the tail and never block: when the
+ * ring is full offer() returns false. Only one thread may call poll()
+ * and drainTo().
+ */
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class RingBuffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new AtomicReferenceArray<T>(size);
+        mask = size - 1;
+    }
+
+    public boolean offer(T item) {
+        if (item == null) throw new NullPointerException();
+        while (true) {
+            long t = tail.get();
+            if (t - head.get() > mask) return false; // full
+            if (tail.compareAndSet(t, t + 1)) {
+                slots.lazySet((int) (t & mask), item);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest item, or null when empty (or the next producer has
+     * claimed its slot but not yet written it).
+     */
+    public T poll() {
+        long h = head.get();
+        int i = (int) (h & mask);
+        T item = slots.get(i);
+        if (item == null) return null;
+        slots.lazySet(i, null);
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * Moves up to max items into out. Returns how many were moved.
+     */
+    public int drainTo(List<? super T> out, int max) {
+        int n = 0;
+        T item;
+        while (n < max && (item = poll()) != null) {
+            out.add(item);
+            n++;
+        }
+        return n;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * RollingLogFile.java -- writes the console output to size-capped files.
+ *
+ * Everything passed to Setup.print goes to logs/<name>.log, with or
+ * without a window; the console only keeps its last lines. When that file reaches Setup.LOG_FILE_SIZE it is
+ * renamed to <name>.log.1 (older ones shift up to Setup.LOG_FILES) and a
+ * new one is started. Writing happens on a background thread so no logging
+ * thread waits for the disk; if the disk falls behind, fragments are
+ * dropped and counted.
+ */
+
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RollingLogFile implements Runnable {
+    private static final int PENDING = 64 * 1024; // fragments
+
+    private final File dir;
+    private final String name;
+    private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(PENDING);
+    private final AtomicLong dropped = new AtomicLong();
+    private Writer out;
+    private long size;
+
+    public RollingLogFile(File dir, String name) {
+        this.dir = dir;
+        this.name = name;
+        Thread t = new Thread(this, "RollingLogFile");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void write(String txt) {
+        if (!queue.offer(txt)) dropped.incrementAndGet();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                String txt = queue.poll(1, TimeUnit.SECONDS);
+                try {
+                    if (txt == null) {
+                        if (out != null) out.flush();
+                        continue;
+                    }
+                    if (out == null || size >= Setup.LOG_FILE_SIZE) roll();
+                    out.write(txt);
+                    size += txt.length();
+                } catch (IOException e) {
+                    // keep going with the console; try a new file next time
+                    if (txt != null) dropped.incrementAndGet();
+                    close();
+                }
+            }
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+
+    private void roll() throws IOException {
+        close();
+        if (!dir.exists()) dir.mkdirs();
+        File current = new File(dir, name + ".log");
+        if (current.length() >= Setup.LOG_FILE_SIZE) {
+            new File(dir, name + ".log." + Setup.LOG_FILES).delete();
+            for (int i = Setup.LOG_FILES - 1; i >= 1; i--) {
+                new File(dir, name + ".log." + i).renameTo(new File(dir, name + ".log." + (i + 1)));
+            }
+            current.renameTo(new File(dir, name + ".log.1"));
+        }
+        size = current.length();
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(current, true), "UTF-8"));
+    }
+
+    private void close() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        out = null;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
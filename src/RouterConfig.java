@@ -0,0 +1,203 @@
+/**
+ * RouterConfig.java -- settings that may change while the router runs.
+ *
+ * A RouterConfig never changes once built. The current one is published
+ * through a volatile reference, so a worker that takes RouterConfig.get()
+ * once sees a consistent set of values even if a reload happens meanwhile.
+ * Settings come from a properties file (router.properties by default)
+ * that is checked for changes every RELOAD_CHECK ms, and from the
+ * settings dialog, which writes its values back to that file (see save)
+ * so the next reload keeps them. Keys missing from the file keep their
+ * defaults.
+ *
+ * Sizes and ports that only matter at startup stay constants in Setup.
+ */
+
+import java.io.*;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+public class RouterConfig {
+    private static final long RELOAD_CHECK = 2000;
+
+    // keepalive
+    public final int updateInterval;       // update.interval, secs between keepalives
+    public final boolean sendResponse;     // keepalive.response, answer each KeepAlive
+    public final String responseHeader;    // keepalive.response.header, Type of that answer
+    // forwarding
+    public final boolean compression;      // compression, deflate to neighbors that accept it
+    public final int compressionThreshold; // compression.threshold, chars; smaller messages go raw
+    public final int messageTtl;           // message.ttl, hops a message may take
+    public final boolean recordPath;       // record.path, routers append themselves to Path
+    public final boolean reliable;         // reliable, window messages wait for an end-to-end ack
+    public final boolean spool;            // spool, keep undeliverable messages on disk
+    public final int spoolExpiry;          // spool.expiry, secs
+    // routing
+    public final boolean adaptiveRouting;  // adaptive.routing, least loaded near-equal-cost hop
+    public final double stretch;           // adaptive.stretch, max path cost over the best one
+    public final boolean multiplex;        // multiplex, forward over the routing connection (new connections)
+    public final boolean dynamicCosts;     // dynamic.costs, link costs from echo RTT and loss
+    public final int costRttUnit;          // cost.rtt.unit, ms of smoothed RTT per cost unit
+    public final int costHysteresis;       // cost.hysteresis, percent change to update a cost
+    // logging
+    public final String logLevels;         // log.levels, see Setup.setLogLevels; empty restores the defaults
+    public final boolean journal;          // journal, record routing events (off by default); opened when routing starts
+
+    private static volatile RouterConfig current = new RouterConfig(new Properties());
+    private static File file = null;
+    private static long lastModified = 0;
+
+    public RouterConfig(Properties p) {
+        updateInterval = getInt(p, "update.interval", 30);
+        sendResponse = getBoolean(p, "keepalive.response", false);
+        responseHeader = p.getProperty("keepalive.response.header", "WELCOME").trim();
+        compression = getBoolean(p, "compression", false);
+        compressionThreshold = getInt(p, "compression.threshold", 512);
+        messageTtl = getInt(p, "message.ttl", 16);
+        recordPath = getBoolean(p, "record.path", false);
+        reliable = getBoolean(p, "reliable", false);
+        spool = getBoolean(p, "spool", false);
+        spoolExpiry = getInt(p, "spool.expiry", 600);
+        adaptiveRouting = getBoolean(p, "adaptive.routing", false);
+        stretch = getDouble(p, "adaptive.stretch", 1.5);
+        multiplex = getBoolean(p, "multiplex", false);
+        dynamicCosts = getBoolean(p, "dynamic.costs", false);
+        costRttUnit = Math.max(1, getInt(p, "cost.rtt.unit", 10));
+        costHysteresis = getInt(p, "cost.hysteresis", 20);
+        logLevels = p.getProperty("log.levels", "").trim();
+        journal = getBoolean(p, "journal", false);
+        if (updateInterval <= 0) throw new IllegalArgumentException("update.interval debe ser positivo");
+        if (messageTtl <= 0) throw new IllegalArgumentException("message.ttl debe ser positivo");
+    }
+
+    public Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("update.interval", Integer.toString(updateInterval));
+        p.setProperty("keepalive.response", Boolean.toString(sendResponse));
+        p.setProperty("keepalive.response.header", responseHeader);
+        p.setProperty("compression", Boolean.toString(compression));
+        p.setProperty("compression.threshold", Integer.toString(compressionThreshold));
+        p.setProperty("message.ttl", Integer.toString(messageTtl));
+        p.setProperty("record.path", Boolean.toString(recordPath));
+        p.setProperty("reliable", Boolean.toString(reliable));
+        p.setProperty("spool", Boolean.toString(spool));
+        p.setProperty("spool.expiry", Integer.toString(spoolExpiry));
+        p.setProperty("adaptive.routing", Boolean.toString(adaptiveRouting));
+        p.setProperty("adaptive.stretch", Double.toString(stretch));
+        p.setProperty("multiplex", Boolean.toString(multiplex));
+        p.setProperty("dynamic.costs", Boolean.toString(dynamicCosts));
+        p.setProperty("cost.rtt.unit", Integer.toString(costRttUnit));
+        p.setProperty("cost.hysteresis", Integer.toString(costHysteresis));
+        p.setProperty("log.levels", logLevels);
+        p.setProperty("journal", Boolean.toString(journal));
+        return p;
+    }
+
+    private static int getInt(Properties p, String key, int def) {
+        String v = p.getProperty(key);
+        if (v == null) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " no es un entero: " + v);
+        }
+    }
+
+    private static double getDouble(Properties p, String key, double def) {
+        String v = p.getProperty(key);
+        if (v == null) return def;
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " no es un numero: " + v);
+        }
+    }
+
+    private static boolean getBoolean(Properties p, String key, boolean def) {
+        String v = p.getProperty(key);
+        return v == null ? def : Boolean.parseBoolean(v.trim());
+    }
+
+    //region Publishing
+
+    public static RouterConfig get() {
+        return current;
+    }
+
+    public static void publish(RouterConfig config) {
+        current = config;
+        Setup.resetLogLevels();
+        if (config.logLevels.length() > 0) Setup.setLogLevels(config.logLevels);
+    }
+
+    /**
+     * Publishes config and writes it to the watched file, so a later reload
+     * does not bring the old values back. Keys the file has that are not
+     * settings are kept; its comments are not.
+     */
+    public static synchronized void save(RouterConfig config) {
+        publish(config);
+        if (file == null) return;
+        Properties p = new Properties();
+        try {
+            if (file.exists()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    p.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            p.putAll(config.toProperties());
+            OutputStream out = new FileOutputStream(file);
+            try {
+                p.store(out, "RouterV2");
+            } finally {
+                out.close();
+            }
+            lastModified = file.lastModified();
+            Setup.println("[RouterConfig.save] Configuracion guardada en " + file);
+        } catch (IOException e) {
+            Setup.println("[RouterConfig.save] No es posible escribir " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads f if it exists and reloads it whenever it changes. A file that
+     * does not parse is reported and the running config is kept.
+     */
+    public static synchronized void watch(File f) {
+        file = f;
+        reload();
+        Timer timer = new Timer("RouterConfig", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                reload();
+            }
+        }, RELOAD_CHECK, RELOAD_CHECK);
+    }
+
+    private static synchronized void reload() {
+        if (file == null || !file.exists() || file.lastModified() == lastModified) return;
+        lastModified = file.lastModified();
+        Properties p = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            publish(new RouterConfig(p));
+            Setup.println("[RouterConfig.reload] Configuracion cargada de " + file);
+        } catch (IOException e) {
+            Setup.println("[RouterConfig.reload] No es posible leer " + file + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            Setup.println("[RouterConfig.reload] Configuracion invalida en " + file + ": " + e.getMessage());
+        }
+    }
+
+    //endregion
+}
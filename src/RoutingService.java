@@ -3,13 +3,20 @@
  */
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 
 public class RoutingService implements Runnable {
     protected ServerSocket serverSocket = null;
@@ -23,6 +30,28 @@ public class RoutingService implements Runnable {
     private ArrayList<NbrCostPair> nbrList;
     public static HashMap<String, Integer> dv;
     public static HashMap<String, String> next;
+    // all neighbors giving the best cost to each destination (ECMP)
+    public static ConcurrentHashMap<String, List<String>> nextHops;
+    // loop-free alternate next hop per destination, used when the primary fails
+    public static ConcurrentHashMap<String, String> backup;
+    // loop-free next hops within RouterConfig.stretch of the best cost, cheapest first (adaptive routing)
+    public static ConcurrentHashMap<String, List<String>> candidates;
+    static final LoadBalancer balancer = new LoadBalancer();
+    // last published copy of the table for readers outside the routing threads
+    private static volatile RoutingSnapshot snapshot = RoutingSnapshot.EMPTY;
+    private static final AtomicLong snapshotVersion = new AtomicLong();
+    static final Metrics.Counter dvIn = Metrics.counter("routing.dv.in", "Vectores de distancia recibidos");
+    static final Metrics.Counter keepaliveIn = Metrics.counter("routing.keepalive.in", "KeepAlive recibidos");
+    static final Metrics.Counter bytesIn = Metrics.counter("routing.bytes.in", "Bytes recibidos en el puerto de ruteo");
+    static final Metrics.Counter parseErrors = Metrics.counter("routing.parse.errors", "Conexiones de ruteo cerradas por un mensaje mal formado");
+    static final Metrics.Counter connectionErrors = Metrics.counter("routing.connection.errors", "Conexiones de ruteo cerradas por error de E/S");
+    static final Metrics.Counter routeChanges = Metrics.counter("routing.route.changes", "Cambios de ruta");
+    static final Metrics.Counter neighborDown = Metrics.counter("routing.neighbor.down", "Vecinos declarados caidos");
+    static final Metrics.Counter neighborAlive = Metrics.counter("routing.neighbor.alive", "Vecinos que volvieron");
+    // routing events for post-mortem analysis, null when disabled
+    static EventJournal journal = null;
+    // neighbors a send failed to, until we hear from them again
+    static final ConcurrentHashMap<String, Long> failedHops = new ConcurrentHashMap<String, Long>();
     private Neighbor myself;
     public static final int INFINITY = 99;
 
@@ -31,6 +60,7 @@ public class RoutingService implements Runnable {
 
     static RoutingService server = null;
     private long scheduleInterval;
+    private int jitter;
 
     public static boolean isServerRunning() {
         return server != null && server.isRunning;
@@ -41,6 +71,84 @@ public class RoutingService implements Runnable {
         server = null;
     }
 
+    /**
+     * Picks the next hop for a flow. When several neighbors give the same
+     * cost the flow (from, to) is hashed over them, so every message of a
+     * flow takes the same link and keeps its order.
+     *
+     * With RouterConfig.adaptiveRouting new flows go instead to the least loaded
+     * of the candidate hops (see LoadBalancer) and stay there while active.
+     */
+    public static String selectNextHop(String from, String to) {
+        if (next == null) return null;
+        if (RouterConfig.get().adaptiveRouting && candidates != null) {
+            List<String> hops = candidates.get(to);
+            if (hops != null && hops.size() > 1) {
+                String hop = balancer.select(from, to, hops);
+                if (hop != null) return hop;
+                hop = alternateHop(to, null);
+                return (hop != null) ? hop : hops.get(0);
+            }
+        }
+        List<String> hops = nextHops.get(to);
+        if (hops == null || hops.size() < 2) {
+            String primary = next.get(to);
+            return (primary != null && isFailed(primary)) ? backupHop(to, primary) : primary;
+        }
+        int h = (from.toLowerCase() + ">" + to.toLowerCase()).hashCode() & 0x7fffffff;
+        // skip failed equal-cost hops, then fall back to the alternate
+        for (int i = 0; i < hops.size(); i++) {
+            String hop = hops.get((h + i) % hops.size());
+            if (!isFailed(hop)) return hop;
+        }
+        return backupHop(to, hops.get(h % hops.size()));
+    }
+
+    /**
+     * Alternate next hop for a destination once failedHop could not be
+     * reached: marks it failed and picks another hop. Returns failedHop
+     * itself when there is no usable alternate.
+     */
+    public static String backupHop(String to, String failedHop) {
+        markFailed(failedHop);
+        String alt = alternateHop(to, failedHop);
+        return (alt == null) ? failedHop : alt;
+    }
+
+    /**
+     * First usable hop to a destination other than excluded: another
+     * equal-cost hop, else the loop-free backup. Null if there is none.
+     * Unlike backupHop it does not mark anything failed.
+     */
+    public static String alternateHop(String to, String excluded) {
+        List<String> hops = (nextHops == null) ? null : nextHops.get(to);
+        if (hops != null) {
+            for (String hop : hops) {
+                if (!hop.equalsIgnoreCase(excluded) && !isFailed(hop)) return hop;
+            }
+        }
+        String alt = (backup == null) ? null : backup.get(to);
+        return (alt == null || alt.equalsIgnoreCase(excluded) || isFailed(alt)) ? null : alt;
+    }
+
+    public static void markFailed(String hop) {
+        failedHops.put(hop.toLowerCase(), System.currentTimeMillis());
+    }
+
+    public static boolean isFailed(String hop) {
+        return failedHops.containsKey(hop.toLowerCase());
+    }
+
+    public static RoutingSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public static boolean hasRoute(String to) {
+        if (next == null || next.get(to) == null) return false;
+        Integer cost = dv.get(to);
+        return cost != null && cost < INFINITY;
+    }
+
     public static void start() {
         Setup.println("Router iniciado en " + Setup.address.getHostAddress() + ":" + Setup.ROUTING_PORT);
         server = new RoutingService();
@@ -77,7 +185,20 @@ public class RoutingService implements Runnable {
         this.nbrList = Setup.nbrList;
         dv = new HashMap<String, Integer>();
         next = new HashMap<String, String>();
-        scheduleInterval = Long.parseLong(RuteadorWindow.dlgSettings.txtInterval.getText()) + new Random(new Date().getTime()).nextInt(5);
+        nextHops = new ConcurrentHashMap<String, List<String>>();
+        backup = new ConcurrentHashMap<String, String>();
+        candidates = new ConcurrentHashMap<String, List<String>>();
+        if (RouterConfig.get().journal && journal == null) {
+            try {
+                File dir = new File("journal");
+                if (!dir.exists()) dir.mkdirs();
+                journal = new EventJournal(new File(dir, id + ".jnl"), Setup.JOURNAL_RECORDS);
+            } catch (IOException e) {
+                Setup.println("[RoutingService.run] No es posible abrir el journal: " + e.getMessage());
+            }
+        }
+        jitter = new Random(new Date().getTime()).nextInt(5);
+        scheduleInterval = RouterConfig.get().updateInterval + jitter;
 
         Setup.println("Starting Router <" + id + "> on port " + port);
         Setup.println("Neighbors: " + getNbrString());
@@ -99,18 +220,13 @@ public class RoutingService implements Runnable {
         // for myself. (See header comments about refactoring code.)
         /////////////////////////////////////////////
         myself = new Neighbor(id, addr, port, dv);
+        updateNextHops();
 
         printTable(); // print table first
 
         // Send distance vector to all neighbors and schedule task
         distribute();
-        Timer timerUpdate = new Timer();
-        timerUpdate.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                distribute(true); // keepalive
-            }
-        },scheduleInterval * 1000, scheduleInterval * 1000);
+        scheduleKeepalive(new Timer());
 
         openServerSocket();
         while (!isStopped()) {
@@ -133,6 +249,25 @@ public class RoutingService implements Runnable {
     }
 
 
+    /**
+     * Schedules the next keepalive. The interval is read again every time,
+     * so a reloaded update.interval applies from the next one on.
+     */
+    private void scheduleKeepalive(final Timer timer) {
+        scheduleInterval = RouterConfig.get().updateInterval + jitter;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                distribute(true); // keepalive
+                if (isStopped()) {
+                    timer.cancel();
+                } else {
+                    scheduleKeepalive(timer);
+                }
+            }
+        }, scheduleInterval * 1000);
+    }
+
     private synchronized boolean isStopped() {
         return this.isStopped;
     }
@@ -155,6 +290,29 @@ public class RoutingService implements Runnable {
         return r;
     }
 
+    private static void journal(int type, String name, String peer, int oldValue, int newValue) {
+        EventJournal j = journal;
+        if (j != null && RouterConfig.get().journal) j.record(type, name, peer, oldValue, newValue);
+    }
+
+    /**
+     * Applies an optional line of a HELLO ("Encoding:deflate",
+     * "Multiplex:DATA") sent by fromId. False if line is something else.
+     */
+    private boolean helloOption(String fromId, String line) {
+        boolean deflate = line.equalsIgnoreCase("Encoding:" + Compression.DEFLATE);
+        boolean multiplex = line.equalsIgnoreCase("Multiplex:" + NeighborSession.DATA);
+        if (!deflate && !multiplex) return false;
+        if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Received from client>>\n%s\n", line);
+        for (NbrCostPair ncp : nbrList) {
+            if (ncp.getNbr().getId().equalsIgnoreCase(fromId)) {
+                if (deflate) ncp.getNbr().setAcceptsDeflate(true);
+                if (multiplex) ncp.getNbr().setAcceptsMultiplex(true);
+            }
+        }
+        return true;
+    }
+
     private int getNbrCost(String fromId) {
         for (NbrCostPair ncp : nbrList) {
             if (ncp.getNbr().getId().equalsIgnoreCase(fromId)) return ncp.getCost();
@@ -162,6 +320,147 @@ public class RoutingService implements Runnable {
         return 0;
     }
 
+    /**
+     * Applies a measured link cost (RouterConfig.dynamicCosts). A cost may go up
+     * as well as down, so the whole distance vector is recomputed from the
+     * neighbors' last vectors instead of only accepting better routes.
+     */
+    private void setLinkCost(NbrCostPair ncp, int cost) {
+        Setup.println("<<Link cost to " + ncp.getNbr().getId() + " changed: " + ncp.getCost() + " -> " + cost +
+                " (" + ncp.getNbr().getMonitor() + ")>>");
+        journal(EventJournal.LINK_COST, id, ncp.getNbr().getId(), ncp.getCost(), cost);
+        ncp.setCost(cost);
+        boolean change = false;
+        for (String n : new ArrayList<String>(dv.keySet())) {
+            if (n.equalsIgnoreCase(id)) continue;
+            int best = INFINITY;
+            String hop = null;
+            for (NbrCostPair nbr : nbrList) {
+                if (nbr.getCost() >= INFINITY) continue;
+                String nid = nbr.getNbr().getId();
+                Integer d = nid.equalsIgnoreCase(n) ? Integer.valueOf(0) : nbr.getNbr().getDv().get(n);
+                if (d == null || d >= INFINITY) continue;
+                if (nbr.getCost() + d < best) {
+                    best = nbr.getCost() + d;
+                    hop = nid;
+                }
+            }
+            if (dv.get(n) != best || (hop == null ? next.get(n) != null : !hop.equals(next.get(n)))) {
+                change = true;
+                routeChanges.inc();
+                dv.put(n, best);
+                next.put(n, hop);
+            }
+        }
+        updateNextHops();
+        if (change) {
+            Setup.println("<<Change detected>>");
+            Setup.println("Broadcasting...");
+            Setup.println();
+            distribute();
+            printTable();
+        }
+    }
+
+    /**
+     * Rebuilds the equal-cost next hop set of every destination from the
+     * neighbors' last distance vectors. The current next hop is always kept
+     * first so single-path behaviour does not change.
+     *
+     * Also picks the backup (feasible successor) of each destination: the
+     * cheapest other neighbor whose own distance is lower than ours, which
+     * guarantees its path does not come back through this router.
+     *
+     * The adaptive candidates are the equal-cost hops plus every other
+     * neighbor meeting that same loop-free condition whose path is within
+     * RouterConfig.stretch of the best cost.
+     */
+    private void updateNextHops() {
+        double stretch = RouterConfig.get().stretch;
+        for (String n : new ArrayList<String>(dv.keySet())) {
+            ArrayList<String> hops = new ArrayList<String>();
+            final HashMap<String, Integer> near = new HashMap<String, Integer>();
+            String primary = next.get(n);
+            int best = dv.get(n);
+            String alt = null;
+            int altCost = INFINITY;
+            if (primary != null && best < INFINITY && !n.equalsIgnoreCase(id)) {
+                hops.add(primary);
+                for (NbrCostPair ncp : nbrList) {
+                    String nid = ncp.getNbr().getId();
+                    if (ncp.getCost() >= INFINITY || nid.equalsIgnoreCase(primary)) continue;
+                    Integer d = nid.equalsIgnoreCase(n) ? Integer.valueOf(0) : ncp.getNbr().getDv().get(n);
+                    if (d == null || d >= INFINITY) continue;
+                    if (ncp.getCost() + d == best) {
+                        hops.add(nid);
+                    } else if (d < best) {
+                        if (ncp.getCost() + d < altCost) {
+                            alt = nid;
+                            altCost = ncp.getCost() + d;
+                        }
+                        if (ncp.getCost() + d <= best * stretch) {
+                            near.put(nid, ncp.getCost() + d);
+                        }
+                    }
+                }
+            }
+            nextHops.put(n, hops);
+            ArrayList<String> cands = new ArrayList<String>(hops);
+            ArrayList<String> others = new ArrayList<String>(near.keySet());
+            Collections.sort(others, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return near.get(a) - near.get(b);
+                }
+            });
+            cands.addAll(others);
+            candidates.put(n, cands);
+            if (alt != null) {
+                backup.put(n, alt);
+            } else {
+                backup.remove(n);
+            }
+        }
+        publishSnapshot();
+    }
+
+    private void publishSnapshot() {
+        ArrayList<RoutingSnapshot.Row> rows = new ArrayList<RoutingSnapshot.Row>();
+        for (String n : new ArrayList<String>(dv.keySet())) {
+            if (n.equalsIgnoreCase(id)) continue;
+            Integer cost = dv.get(n);
+            StringBuilder alternates = new StringBuilder();
+            List<String> hops = nextHops.get(n);
+            if (hops != null) {
+                for (int i = 1; i < hops.size(); i++) {
+                    if (alternates.length() > 0) alternates.append(',');
+                    alternates.append(hops.get(i));
+                }
+            }
+            String alt = backup.get(n);
+            if (alt != null && (hops == null || !hops.contains(alt))) {
+                if (alternates.length() > 0) alternates.append(',');
+                alternates.append(alt);
+            }
+            String hop = next.get(n);
+            String hopAddress = null;
+            int linkCost = INFINITY;
+            for (NbrCostPair ncp : nbrList) {
+                if (hop != null && ncp.getNbr().getId().equalsIgnoreCase(hop)) {
+                    hopAddress = ncp.getNbr().getAddr().getHostAddress();
+                    linkCost = ncp.getCost();
+                }
+            }
+            rows.add(new RoutingSnapshot.Row(n, cost == null ? INFINITY : cost, hop, hopAddress, linkCost,
+                    alternates.toString()));
+        }
+        Collections.sort(rows, new Comparator<RoutingSnapshot.Row>() {
+            public int compare(RoutingSnapshot.Row a, RoutingSnapshot.Row b) {
+                return RoutingSnapshot.compare(a, b);
+            }
+        });
+        snapshot = new RoutingSnapshot(snapshotVersion.incrementAndGet(), rows);
+    }
+
     // CONVENIENT UTILITY PROGRAM TO PRINT A DISTANCE VECTOR:
     public void printDv(String fromId, HashMap<String, Integer> dv) {
         Setup.println("<<From neighbor " + fromId + ">>");
@@ -206,6 +505,11 @@ public class RoutingService implements Runnable {
                 // check if neighbors are updated
                 ncp.getNbr().UpdateCount++;
                 if (ncp.getNbr().UpdateCount >= 3) {
+                    if (ncp.getNbr().UpdateCount == 3) {
+                        journal(EventJournal.NEIGHBOR_DOWN, id, ncp.getNbr().getId(), ncp.getCost(), INFINITY);
+                        neighborDown.inc();
+                        ForwardingService.removeQueue(ncp.getNbr().getId());
+                    }
                     Setup.println("<<Neighbor " + ncp.getNbr().getId() + " is DOWN>>");
                     Setup.println("Broadcasting...");
                     Setup.println();
@@ -214,6 +518,7 @@ public class RoutingService implements Runnable {
                     dv.put(ncp.getNbr().getId(), INFINITY);
                     next.put(ncp.getNbr().getId(), null);
                     keepalive = false; // notify
+                    updateNextHops();
                 }
             }
             BroadcastingService br = new BroadcastingService(myself, ncp.getNbr(), keepalive);
@@ -246,11 +551,26 @@ public class RoutingService implements Runnable {
                 clientSocket.setSoTimeout(0); // infinite timeout = keep alive
                 //// Open a socket, read the distance vector (in my program I
                 //// called the sender "fromId" and its distance vector "fromdv")
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                in = new BufferedReader(new InputStreamReader(new FilterInputStream(clientSocket.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) bytesIn.inc();
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) bytesIn.add(n);
+                        return n;
+                    }
+                }));
 
                 //get From:<Name Router>
                 String line = in.readLine();
-                Setup.println("<<Received from client>>\n" + line + "\n");
+                if (line == null) return; // closed without a word, e.g. a port check
+                if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Received from client>>\n%s\n", line);
                 //tokenizer From
                 StringTokenizer st = new StringTokenizer(line, ":");
                 //ignore "From"
@@ -260,7 +580,8 @@ public class RoutingService implements Runnable {
 
                 //get "Type:<type>"
                 line = in.readLine();
-                Setup.println("<<Received from client>>\n" + line + "\n");
+                if (line == null) throw new ProtocolException("Solicitud invalida");
+                if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Received from client>>\n%s\n", line);
                 //tokenizer Type
                 st = new StringTokenizer(line, ":");
                 //ignore "Type"
@@ -270,14 +591,22 @@ public class RoutingService implements Runnable {
 
                 if (msgType.equalsIgnoreCase("HELLO")) {
                     Setup.println("[RouterWorker.run] HELLO from " + fromId);
+                    // "Encoding:deflate" and "Multiplex:DATA" lines may follow; they are
+                    // picked up by the loop below instead of waiting for them here
+                    for (NbrCostPair ncp : nbrList) {
+                        if (ncp.getNbr().getId().equalsIgnoreCase(fromId)) {
+                            ncp.getNbr().setAcceptsDeflate(false);
+                            ncp.getNbr().setAcceptsMultiplex(false);
+                        }
+                    }
                     String message = "From:" + Setup.ROUTER_NAME + "\nType:WELCOME\n";
                     DataOutputStream outToClient = new DataOutputStream(clientSocket.getOutputStream());
                     outToClient.writeBytes(message + '\n');
                     outToClient.flush();
-                    Setup.println("<<Sent to client>>\n" + message + "\n");
+                    if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Sent to client>>\n%s\n", message);
 
                 } else {
-                    throw new Exception("Tipo de mensaje invalido");
+                    throw new ProtocolException("Tipo de mensaje invalido");
                 }
 
                 while (true) {
@@ -287,7 +616,10 @@ public class RoutingService implements Runnable {
 
                     //get From:<Name Router>
                     line = in.readLine();
-                    Setup.println("<<Received from client>>\n" + line + "\n");
+                    long readAt = System.nanoTime();
+                    if (line == null) break; // the neighbor closed the connection between messages
+                    if (helloOption(fromId, line)) continue;
+                    if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Received from client>>\n%s\n", line);
                     //tokenizer From
                     st = new StringTokenizer(line, ":");
                     //ignore "From"
@@ -297,7 +629,8 @@ public class RoutingService implements Runnable {
 
                     //get "Type:<type>"
                     line = in.readLine();
-                    Setup.println("<<Received from client>>\n" + line + "\n");
+                    if (line == null) throw new ProtocolException("Solicitud invalida");
+                    if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Received from client>>\n%s\n", line);
                     //tokenizer Type
                     st = new StringTokenizer(line, ":");
                     //ignore "Type"
@@ -306,43 +639,101 @@ public class RoutingService implements Runnable {
                     msgType = st.nextToken();
 
                     if (msgType.equalsIgnoreCase("KeepAlive")) {
-                        Setup.println("[RouterWorker.run] KeepAlive from " + fromId);
-                        if (RuteadorWindow.dlgSettings.chkSendResponse.isSelected()) {
-                            String message = "From:" + Setup.ROUTER_NAME + "\nType:" + RuteadorWindow.dlgSettings.txtResponse.getText() + "\n";
+                        keepaliveIn.inc();
+                        if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "[RouterWorker.run] KeepAlive from %s", fromId);
+                        RouterConfig config = RouterConfig.get();
+                        if (config.sendResponse) {
+                            String message = "From:" + Setup.ROUTER_NAME + "\nType:" + config.responseHeader + "\n";
                             DataOutputStream outToClient = new DataOutputStream(clientSocket.getOutputStream());
                             outToClient.writeBytes(message + '\n');
                             outToClient.flush();
-                            Setup.println("<<Sent to client>>\n" + message + "\n");
+                            if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Sent to client>>\n%s\n", message);
+                        }
+                    }
+                    else if (msgType.equals(NeighborSession.DATA)) {
+                        // a forwarded message on the shared connection
+                        line = in.readLine();
+                        if (line == null) throw new ProtocolException("Solicitud invalida");
+                        ForwarderMessage message;
+                        try {
+                            message = HeaderCodec.decode(ByteBuffer.wrap(Base64.getDecoder().decode(line)));
+                        } catch (IOException e) {
+                            // the frame is already in memory, so this is a malformed header
+                            throw new ProtocolException(e.getMessage());
+                        }
+                        message.arrivedAt = readAt;
+                        Neighbor sender = null;
+                        for (NbrCostPair ncp : nbrList) {
+                            if (ncp.getNbr().getId().equalsIgnoreCase(fromId)) sender = ncp.getNbr();
+                        }
+                        if (sender == null) {
+                            Setup.println("[RouterWorker.run] DATA de vecino desconocido " + fromId + ", descartado");
+                        } else {
+                            sender.getSession().receive(message);
                         }
                     }
-                    else if (!msgType.equals("DV"))
-                        throw new Exception("Tipo de mensaje invalido");
+                    else if (msgType.equalsIgnoreCase("Echo") || msgType.equalsIgnoreCase("EchoReply")) {
+                        //get "Seq:<n>"
+                        line = in.readLine();
+                        if (line == null || !line.startsWith("Seq:")) throw new ProtocolException("Solicitud invalida");
+                        int seq = Integer.parseInt(line.substring(4).trim());
+                        for (NbrCostPair ncp : nbrList) {
+                            if (!ncp.getNbr().getId().equalsIgnoreCase(fromId)) continue;
+                            if (msgType.equalsIgnoreCase("Echo")) {
+                                // answer over our own connection to the neighbor, which it reads
+                                BroadcastingService.send(myself, ncp.getNbr(),
+                                        "From:" + Setup.ROUTER_NAME + "\nType:EchoReply\nSeq:" + seq + "\n");
+                            } else {
+                                LinkMonitor monitor = ncp.getNbr().getMonitor();
+                                if (monitor.onReply(seq) && RouterConfig.get().dynamicCosts && monitor.ready() &&
+                                        ncp.getCost() < INFINITY &&
+                                        LinkMonitor.significant(ncp.getCost(), monitor.cost())) {
+                                    setLinkCost(ncp, monitor.cost());
+                                }
+                            }
+                        }
+                    }
+                    else if (!msgType.equals("DV") && !msgType.equals("ZDV"))
+                        throw new ProtocolException("Tipo de mensaje invalido");
 
                     // reset neighbor update count
                     for (NbrCostPair ncp : nbrList) {
                         if (ncp.getNbr().getId().equalsIgnoreCase(fromId)) {
+                            if (ncp.getNbr().UpdateCount >= 3) {
+                                journal(EventJournal.NEIGHBOR_ALIVE, id, ncp.getNbr().getId(), 0, 0);
+                                neighborAlive.inc();
+                            }
                             ncp.getNbr().UpdateCount = 0;
-                            Setup.println("<<Neighbor " + ncp.getNbr().getId() + " is ALIVE>>");
-                            Setup.println();
+                            failedHops.remove(ncp.getNbr().getId().toLowerCase());
+                            if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Neighbor %s is ALIVE>>\n", ncp.getNbr().getId());
                         }
                     }
 
-                    if (msgType.equalsIgnoreCase("KeepAlive")) continue;
+                    if (!msgType.equals("DV") && !msgType.equals("ZDV")) continue;
 
                     //get "Len:<leb>"
                     line = in.readLine();
-                    Setup.println("<<Received from client>>\n" + line + "\n");
+                    if (line == null) throw new ProtocolException("Solicitud invalida");
+                    if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) Setup.log(Setup.ROUTING, Setup.DEBUG, "<<Received from client>>\n%s\n", line);
                     //tokenizer Type
                     st = new StringTokenizer(line, ":");
                     //ignore "Len"
                     st.nextToken();
                     //get length
                     int len = Integer.parseInt(st.nextToken());
+                    BufferedReader entries = in;
+                    if (msgType.equals("ZDV")) {
+                        // compressed table: one Base64 line holding the deflated entries
+                        line = in.readLine();
+                        if (line == null) throw new ProtocolException("Solicitud invalida");
+                        byte[] data = Compression.inflate(Base64.getDecoder().decode(line));
+                        entries = new BufferedReader(new StringReader(new String(data, "UTF-8")));
+                    }
                     //for to save distanceVectorTable
                     for (int i = 1; i <= len; i++) {
                         //get first line of request from client
-                        String input = in.readLine();
-                        if (input == null) throw new Exception("Solicitud invalida");
+                        String input = entries.readLine();
+                        if (input == null) throw new ProtocolException("Solicitud invalida");
                         StringTokenizer parse = new StringTokenizer(input, ":");
                         String fname = parse.nextToken();
                         int fdv = Integer.parseInt(parse.nextToken());
@@ -351,7 +742,9 @@ public class RoutingService implements Runnable {
                     }
 
                     // FOR DEBUGGING:
-                    printDv(fromId, fromdv);
+                    if (Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) printDv(fromId, fromdv);
+                    journal(EventJournal.DV_RECEIVED, id, fromId, 0, fromdv.size());
+                    dvIn.inc();
 
                     boolean change = false;
                     for (String n : fromdv.keySet()) {
@@ -366,16 +759,20 @@ public class RoutingService implements Runnable {
 
                         if (dv.get(n) > bc + fromdv.get(n)) {
                             change = true;
-                            Setup.print(String.format("<<Better route to %s>>\ncurr: %d, new: %d [%d + %d]\n\n",
-                                    n, dv.get(n), bc + fromdv.get(n), bc, fromdv.get(n)));
+                            if (Setup.isLoggable(Setup.ROUTING, Setup.INFO)) Setup.log(Setup.ROUTING, Setup.INFO, "<<Better route to %s>>\ncurr: %d, new: %d [%d + %d]\n",
+                                    n, dv.get(n), bc + fromdv.get(n), bc, fromdv.get(n));
+                            journal(EventJournal.BETTER_ROUTE, n, fromId, dv.get(n), bc + fromdv.get(n));
+                            routeChanges.inc();
                             // Update own Distance Vector
                             dv.put(n, bc + fromdv.get(n));
                             next.put(n, fromId);
                         } else if (dv.get(n) != INFINITY && fromdv.get(n)== INFINITY){
                             // link status changed
                             change = true;
-                            Setup.print(String.format("<<Route to %s is DOWN>>\ncurr: %d, new: %d\n\n",
-                                    n, dv.get(n), fromdv.get(n)));
+                            if (Setup.isLoggable(Setup.ROUTING, Setup.INFO)) Setup.log(Setup.ROUTING, Setup.INFO, "<<Route to %s is DOWN>>\ncurr: %d, new: %d\n",
+                                    n, dv.get(n), fromdv.get(n));
+                            journal(EventJournal.ROUTE_DOWN, n, fromId, dv.get(n), INFINITY);
+                            routeChanges.inc();
                             // Update own Distance Vector
                             dv.put(n, INFINITY);
                             next.put(n, null);
@@ -389,6 +786,14 @@ public class RoutingService implements Runnable {
                         }
                     }
 
+                    updateNextHops();
+                    for (NbrCostPair ncp : nbrList) {
+                        if (ncp.getNbr().getId().equalsIgnoreCase(fromId)) {
+                            ncp.getNbr().getDvLatency().record((System.nanoTime() - readAt) / 1000);
+                        }
+                    }
+                    ForwardingService.replaySpools();
+
                     if (change) {
                         Setup.println("<<Change detected>>");
                         Setup.println("Broadcasting...");
@@ -398,7 +803,8 @@ public class RoutingService implements Runnable {
 
                     }
 
-                    printTable(); // print routing table
+                    // the full table only when it changed, unless debugging
+                    if (change || Setup.isLoggable(Setup.ROUTING, Setup.DEBUG)) printTable();
 
                     // don't close socket
                     // clientSocket.close();
@@ -406,8 +812,18 @@ public class RoutingService implements Runnable {
                 } // end-while true
             } catch (SocketTimeoutException ste) {
                 Setup.println("[RouterWorker.run] Tiempo de espera de conexion agotado");
-            } catch (Exception ioe) {
-                Setup.println("[RouterWorker.run] Error de servidor: " + ioe);
+            } catch (ProtocolException pe) {
+                parseErrors.inc();
+                Setup.println("[RouterWorker.run] Mensaje mal formado: " + pe.getMessage());
+            } catch (IOException ioe) {
+                connectionErrors.inc();
+                Setup.println("[RouterWorker.run] Error de conexion: " + ioe);
+            } catch (Exception e) {
+                // a field that does not parse (number, missing token, Base64, deflate) is a malformed
+                // message too; anything else is a bug here, not the neighbor's fault
+                if (e instanceof IllegalArgumentException || e instanceof NoSuchElementException ||
+                        e instanceof DataFormatException) parseErrors.inc();
+                Setup.println("[RouterWorker.run] Error de servidor: " + e);
               //  ioe.printStackTrace();
             } finally {
                 try {
@@ -0,0 +1,78 @@
+/**
+ * RoutingSnapshot.java -- immutable copy of the routing table.
+ *
+ * RoutingService publishes a new snapshot through a volatile reference
+ * after every change, so readers (the GUI, status pages) never touch the
+ * maps the routing threads are updating. Rows are sorted by destination.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class RoutingSnapshot {
+    public static final RoutingSnapshot EMPTY = new RoutingSnapshot(0, new ArrayList<Row>());
+
+    public static class Row {
+        public final String destination;
+        public final int cost;
+        public final String nextHop;
+        public final String hopAddress; // IP of the next hop, null without one
+        public final int linkCost; // cost of the link to the next hop, INFINITY without one
+        public final String alternates; // other equal-cost hops and the backup, comma separated
+
+        public Row(String destination, int cost, String nextHop, String hopAddress, int linkCost, String alternates) {
+            this.destination = destination;
+            this.cost = cost;
+            this.nextHop = nextHop;
+            this.hopAddress = hopAddress;
+            this.linkCost = linkCost;
+            this.alternates = alternates;
+        }
+
+        public boolean sameAs(Row other) {
+            return cost == other.cost && linkCost == other.linkCost && equal(nextHop, other.nextHop) &&
+                    equal(hopAddress, other.hopAddress) && equal(alternates, other.alternates);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final long version;
+    private final long createdAt;
+    private final List<Row> rows;
+
+    public RoutingSnapshot(long version, List<Row> rows) {
+        this.version = version;
+        this.createdAt = System.currentTimeMillis();
+        this.rows = Collections.unmodifiableList(rows);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public List<Row> getRows() {
+        return rows;
+    }
+
+    /**
+     * True if the table has a row for destination, reachable or not.
+     */
+    public boolean contains(String destination) {
+        for (Row r : rows) {
+            if (r.destination.equalsIgnoreCase(destination)) return true;
+        }
+        return false;
+    }
+
+    public static int compare(Row a, Row b) {
+        return String.CASE_INSENSITIVE_ORDER.compare(a.destination, b.destination);
+    }
+}
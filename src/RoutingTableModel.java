@@ -0,0 +1,145 @@
+/**
+ * RoutingTableModel.java -- live view of the routing table.
+ *
+ * Polls RoutingService.getSnapshot() at most every REFRESH ms on the event
+ * thread. When a new snapshot has been published it is merged row by row
+ * against the one on screen and only the inserted, deleted and changed
+ * rows are reported, so a large table is not repainted for a single route
+ * change. When most rows changed one full refresh is cheaper.
+ *
+ * Next to each route it shows the address of the next hop and the cost of
+ * the link to it, so the rows of the neighbors give the neighbor list the
+ * table used to show.
+ */
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RoutingTableModel extends AbstractTableModel implements ActionListener {
+    private static final long serialVersionUID = 1L;
+    private static final int REFRESH = 250; // ms
+
+    private final String[] columnNames = {"#",
+            "Destino",
+            "Costo",
+            "Siguiente salto",
+            "IP",
+            "Costo enlace",
+            "Alternos"};
+    // preferred widths, see RuteadorWindow.initColumnSizes
+    static final int[] COLUMN_WIDTHS = {30, 100, 50, 100, 110, 70, 150};
+
+    private final ArrayList<RoutingSnapshot.Row> rows = new ArrayList<RoutingSnapshot.Row>();
+    private RoutingSnapshot shown = null;
+    private final Timer timer;
+
+    public RoutingTableModel() {
+        timer = new Timer(REFRESH, this);
+        timer.start();
+        actionPerformed(null);
+    }
+
+    public void dispose() {
+        timer.stop();
+    }
+
+    public void actionPerformed(ActionEvent e) {
+        RoutingSnapshot snapshot = RoutingService.getSnapshot();
+        if (snapshot == shown) return;
+        shown = snapshot;
+        List<RoutingSnapshot.Row> next = snapshot.getRows();
+
+        if (changes(next) * 2 > Math.max(rows.size(), 8)) {
+            rows.clear();
+            rows.addAll(next);
+            fireTableDataChanged();
+            return;
+        }
+
+        // both lists are sorted by destination: walk them together
+        int i = 0;
+        int j = 0;
+        while (i < rows.size() || j < next.size()) {
+            int cmp;
+            if (i >= rows.size()) cmp = 1;
+            else if (j >= next.size()) cmp = -1;
+            else cmp = RoutingSnapshot.compare(rows.get(i), next.get(j));
+
+            if (cmp == 0) {
+                if (!rows.get(i).sameAs(next.get(j))) {
+                    rows.set(i, next.get(j));
+                    fireTableRowsUpdated(i, i);
+                }
+                i++;
+                j++;
+            } else if (cmp < 0) {
+                rows.remove(i);
+                fireTableRowsDeleted(i, i);
+            } else {
+                rows.add(i, next.get(j));
+                fireTableRowsInserted(i, i);
+                i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Rows that differ between the table on screen and next.
+     */
+    private int changes(List<RoutingSnapshot.Row> next) {
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < rows.size() || j < next.size()) {
+            int cmp;
+            if (i >= rows.size()) cmp = 1;
+            else if (j >= next.size()) cmp = -1;
+            else cmp = RoutingSnapshot.compare(rows.get(i), next.get(j));
+            if (cmp == 0) {
+                if (!rows.get(i).sameAs(next.get(j))) n++;
+                i++;
+                j++;
+            } else {
+                n++;
+                if (cmp < 0) i++;
+                else j++;
+            }
+        }
+        return n;
+    }
+
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    public String getColumnName(int col) {
+        return columnNames[col];
+    }
+
+    public Object getValueAt(int row, int col) {
+        RoutingSnapshot.Row r = rows.get(row);
+        switch (col) {
+            case 0: return row + 1;
+            case 1: return r.destination;
+            case 2: return r.cost >= RoutingService.INFINITY ? "INF" : Integer.toString(r.cost);
+            case 3: return r.nextHop == null ? "-" : r.nextHop;
+            case 4: return r.hopAddress == null ? "-" : r.hopAddress;
+            case 5: return r.linkCost >= RoutingService.INFINITY ? "INF" : Integer.toString(r.linkCost);
+            case 6: return r.alternates == null ? "" : r.alternates;
+        }
+        return null;
+    }
+
+    public Class<?> getColumnClass(int c) {
+        return c == 0 ? Integer.class : String.class;
+    }
+}
@@ -15,7 +15,9 @@ import java.net.InetAddress;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -40,14 +42,11 @@ public class RuteadorWindow extends JFrame  {
     ScheduledThreadPoolExecutor exec;
     public static DialogSettings dlgSettings = new DialogSettings();
 
+    // log fragments wait here until the console timer appends them
+    final ConsoleLogger console = new ConsoleLogger(64 * 1024);
+
     public void log(final String txt) {
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                synchronized (txtLog) {
-                    txtLog.append(txt);
-                }
-            }
-        });
+        console.log(txt);
     }
 
     public void println(final String txt) {
@@ -101,12 +100,27 @@ public class RuteadorWindow extends JFrame  {
 
         exec = new ScheduledThreadPoolExecutor(1);
 
+        console.start(txtLog);
+
         println("CONSOLA DE MENSAJES");
         println("-------------------");
         println("");
 
         abrirLog();
 
+        // show messages addressed to us, one console write per batch
+        ForwardingService.inbox.subscribe(new MessageSubscriber() {
+            public void onMessages(List<ForwarderMessage> batch) {
+                StringBuilder sb = new StringBuilder();
+                for (ForwarderMessage m : batch) {
+                    sb.append("<<Received Incoming Message to ME from ").append(m.from).append(">>\n");
+                    if (m.path != null) sb.append("Path: ").append(m.path).append("\n");
+                    sb.append(m.text).append("\n\n");
+                }
+                print(sb.toString());
+            }
+        });
+
         this.actionRouteTable.actionPerformed(null);
         setVisible(true);
     }
@@ -622,7 +636,10 @@ public class RuteadorWindow extends JFrame  {
     }
 
     private void abrirLog() {
-        routeTable.setModel(new MyTableModel());
+        if (routeTable.getModel() instanceof RoutingTableModel) {
+            ((RoutingTableModel) routeTable.getModel()).dispose();
+        }
+        routeTable.setModel(new RoutingTableModel());
         initColumnSizes(routeTable);
         actionStartRouter.setEnabled(true);
         actionStartForwarder.setEnabled(true);
@@ -631,63 +648,9 @@ public class RuteadorWindow extends JFrame  {
 
     private void initColumnSizes(JTable table) {
         TableColumn column = null;
-        for (int i = 0; i < 3; i++) {
+        for (int i = 0; i < table.getColumnCount(); i++) {
             column = table.getColumnModel().getColumn(i);
-            if (i == 0 || i == 2) {
-                column.setPreferredWidth(30);
-            } else {
-                column.setPreferredWidth(100); //second column is bigger
-            }
-        }
-
-    }
-
-    private class MyTableModel extends AbstractTableModel {
-
-        private final String[] columnNames = {"#",
-                "Nombre",
-                "IP",
-                "Costo"};
-
-        private final ArrayList<NbrCostPair> data;
-
-        public MyTableModel() {
-            data = new ArrayList<NbrCostPair>(Setup.nbrList);
-            refreshRoutes();
-        }
-
-        public void refreshRoutes() {
-            this.fireTableDataChanged();
-        }
-
-        public int getColumnCount() {
-            return columnNames.length;
-        }
-
-        public int getRowCount() {
-            return data.size();
-        }
-
-        public String getColumnName(int col) {
-            return columnNames[col];
-        }
-
-        public Object getValueAt(int row, int col) {
-            switch(col){
-                case 0: return row+1;
-                case 1: return data.get(row).getNbr().getId();
-                case 2: return data.get(row).getNbr().getAddr().getHostAddress();
-                case 3: return data.get(row).getCost();
-            }
-            return null;
-        }
-
-        public Class getColumnClass(int c) {
-            return getValueAt(0, c).getClass();
-        }
-
-        public ArrayList<NbrCostPair> getData() {
-            return data;
+            column.setPreferredWidth(RoutingTableModel.COLUMN_WIDTHS[i]);
         }
 
     }
@@ -713,16 +676,66 @@ public class RuteadorWindow extends JFrame  {
 //                JOptionPane.showMessageDialog(null, "La direccion IP es invalida!");
 //                return;
 //            }
-            if (!RoutingService.next.containsKey(target)) {
-                JOptionPane.showMessageDialog(null, "La ruta destino es invalida!");
+            // several targets separated by commas are sent as one multicast message
+            for (String t : target.split(",")) {
+                if (RoutingService.next == null || !RoutingService.next.containsKey(t.trim())) {
+                    JOptionPane.showMessageDialog(null, "La ruta destino es invalida!");
+                    return;
+                }
+            }
+            ForwarderMessage message = new ForwarderMessage(Setup.ROUTER_NAME, target, txtMsg.getText());
+            if (message.text.length() > ForwardingService.STREAM_THRESHOLD) {
+                sendStream(message);
                 return;
             }
-            if (ForwardingService.SendMessage(new ForwarderMessage(
-                    lblSource.getText(),
-                    target,
-                    txtMsg.getText()))){
-                labelStatus2.setText("El mensaje fue enviado a " + target);
+            boolean sent;
+            if (RouterConfig.get().reliable && !message.isMulticast()) {
+                // never wait on the event thread for the window to open
+                sent = ReliableMessaging.offer(message);
+            } else {
+                sent = ForwardingService.SendMessage(message);
+            }
+            // SendMessage only queues the message; transmit failures are logged by the queue
+            if (sent) {
+                labelStatus2.setText("El mensaje a " + target + " fue encolado para envio");
+            } else {
+                labelStatus2.setText("No fue posible encolar el mensaje a " + target + ", intente de nuevo");
+            }
+        }
+
+        /**
+         * Long messages go as a stream in the background; the status line
+         * tells when every chunk was queued or the stream was aborted.
+         */
+        private void sendStream(ForwarderMessage message) {
+            final String target = message.to;
+            final Future<Boolean> result = ForwardingService.submitStream(message);
+            if (result == null) {
+                labelStatus2.setText("No fue posible encolar el mensaje a " + target + ", intente de nuevo");
+                return;
             }
+            labelStatus2.setText("Enviando el mensaje a " + target + " por partes...");
+            new SwingWorker<Boolean, Void>() {
+                @Override
+                protected Boolean doInBackground() throws Exception {
+                    return result.get();
+                }
+
+                @Override
+                protected void done() {
+                    boolean sent;
+                    try {
+                        sent = get();
+                    } catch (Exception e) {
+                        sent = false;
+                    }
+                    if (sent) {
+                        labelStatus2.setText("El mensaje a " + target + " fue encolado para envio");
+                    } else {
+                        labelStatus2.setText("No fue posible enviar el mensaje a " + target + ", ver el log");
+                    }
+                }
+            }.execute();
         }
     }
 
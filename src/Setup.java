@@ -2,7 +2,10 @@
  * Created by Werner on 9/10/2014.
  */
 
-import java.awt.*;
+import java.awt.EventQueue;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -15,22 +18,127 @@ public class Setup {
     public static final int FORWARDING_PORT = 1981; //default port
     public static final int ROUTING_PORT = 9080;
 
+    // settings that can change at runtime are in RouterConfig; these only matter at startup
+    public static String CONFIG_FILE = "router.properties";
+
+    // size of each destination's spool file (see RouterConfig.spool)
+    public static int SPOOL_SIZE = 4 * 1024 * 1024; // bytes per destination
+    public static int SPOOL_FILES = 64; // destinations with a spool at most
+
+    // console keeps the last CONSOLE_LINES lines; everything goes to logs/<ROUTER_NAME>.log, rolled at LOG_FILE_SIZE
+    public static int CONSOLE_LINES = 5000;
+    public static boolean LOG_TO_FILE = true;
+    public static long LOG_FILE_SIZE = 4 * 1024 * 1024; // chars per file
+    public static int LOG_FILES = 5; // rolled files kept
+
+    // binary routing event journal in journal/<ROUTER_NAME>.jnl when journal=true (see RouterConfig.journal, EventJournal)
+    public static int JOURNAL_RECORDS = 64 * 1024; // 64 bytes each, oldest overwritten
+
+    // latency percentiles per neighbor cover the last LATENCY_INTERVAL secs, see Metrics.registerLatency
+    public static int LATENCY_INTERVAL = 60;
+
+    // HTTP endpoint for /metrics (Prometheus) and /routes (JSON), see MetricsServer; off unless -m is given.
+    // It has no authentication, so it only listens on loopback unless -m names another address
+    public static int METRICS_PORT = 0;
+    public static InetAddress METRICS_ADDRESS = InetAddress.getLoopbackAddress();
+
+    // -d: no window, the services start at once and log to stdout
+    public static boolean HEADLESS = false;
+
     public static InetAddress address = null;
     public static String ROUTER_NAME;
     public static RuteadorWindow ruteadorWindow;
+    private static volatile RollingLogFile logFile;
 
     public static final ArrayList<NbrCostPair> nbrList = new ArrayList<NbrCostPair>();
     public static final DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
 
+    //region Log levels
+
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    private static final String[] LEVELS = {"ERROR", "WARN", "INFO", "DEBUG"};
+
+    // subsystems with their own level
+    public static final String ROUTING = "routing";
+    public static final String BROADCAST = "broadcast";
+    public static final String FORWARDING = "forwarding";
+
+    private static volatile int defaultLevel = INFO;
+    private static final Map<String, Integer> levels = new java.util.concurrent.ConcurrentHashMap<String, Integer>();
+
+    static {
+        resetLogLevels();
+    }
+
+    /**
+     * Back to INFO everywhere, then -Drouter.log if given
+     * (e.g. -Drouter.log=routing=DEBUG,forwarding=WARN).
+     */
+    public static void resetLogLevels() {
+        levels.clear();
+        defaultLevel = INFO;
+        String spec = System.getProperty("router.log");
+        if (spec != null) setLogLevels(spec);
+    }
+
+    public static boolean isLoggable(String subsystem, int level) {
+        Integer l = levels.get(subsystem);
+        return level <= (l != null ? l : defaultLevel);
+    }
+
+    public static void setLogLevel(String subsystem, int level) {
+        if (subsystem == null) {
+            defaultLevel = level;
+        } else {
+            levels.put(subsystem, level);
+        }
+    }
+
+    /**
+     * Applies "subsystem=LEVEL,..." (a bare LEVEL sets the default). Unknown
+     * levels are ignored.
+     */
+    public static void setLogLevels(String spec) {
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            int level = Arrays.asList(LEVELS).indexOf(kv[kv.length - 1].trim().toUpperCase());
+            if (level < 0) continue;
+            setLogLevel(kv.length > 1 ? kv[0].trim() : null, level);
+        }
+    }
+
+    public static void log(String subsystem, int level, String s) {
+        if (isLoggable(subsystem, level)) println(s);
+    }
+
+    /**
+     * The message is only formatted when the level is enabled. The call
+     * itself still builds the argument array and boxes numbers, so call
+     * sites guard it with isLoggable:
+     *   if (Setup.isLoggable(ROUTING, DEBUG)) Setup.log(ROUTING, DEBUG, "...", a, b);
+     */
+    public static void log(String subsystem, int level, String format, Object... args) {
+        if (isLoggable(subsystem, level)) println(String.format(format, args));
+    }
+
+    //endregion
+
     public static void println(String s){
         print(s + "\n");
     }
 
     public static void print(String s){
+        if (s == null) s = "null"; // like System.out; the log queues do not take null
+        RollingLogFile f = logFile;
+        if (f != null) f.write(s);
         if (ruteadorWindow != null)
             ruteadorWindow.print(s);
-       // System.out.print(s);
+        else if (HEADLESS)
+            System.out.print(s);
     }
 
     public static void println(){
@@ -38,6 +146,7 @@ public class Setup {
     }
 
     public static void main(String[] args) throws IOException {
+        args = daemonArgs(args);
         int num = 0;
         if (args.length == 1 || args.length > 3) {
             if (args[0].equals("-i")) {
@@ -104,9 +213,20 @@ public class Setup {
 
             System.out.println("Utilizando IP: " + address.getHostAddress());
 
+            if (LOG_TO_FILE) logFile = new RollingLogFile(new File("logs"), ROUTER_NAME);
+            RouterConfig.watch(new File(CONFIG_FILE));
+            Metrics.registerDefaults();
+            Metrics.export();
+            if (METRICS_PORT > 0) MetricsServer.start(METRICS_ADDRESS, METRICS_PORT);
+
             //Router r = new Router(ROUTER_NAME, address, ROUTING_PORT, nbrList);
             //r.run();
 
+            if (HEADLESS) {
+                startDaemon();
+                return;
+            }
+
             // Start window
             EventQueue.invokeLater(new Runnable() {
                 public void run() {
@@ -116,9 +236,83 @@ public class Setup {
         }
     }
 
+    /**
+     * Strips the options: "-d" turns on HEADLESS, "-c FILE" picks the
+     * RouterConfig file, "-m [ADDRESS:]PORT" turns on the MetricsServer and "-f FILE" takes the remaining arguments from
+     * FILE (whitespace separated, lines starting with # ignored).
+     */
+    private static String[] daemonArgs(String[] args) throws IOException {
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-d")) {
+                HEADLESS = true;
+            } else if (args[i].equals("-c") && i + 1 < args.length) {
+                CONFIG_FILE = args[++i];
+            } else if (args[i].equals("-m") && i + 1 < args.length) {
+                String metrics = args[++i];
+                int colon = metrics.lastIndexOf(':');
+                try {
+                    if (colon >= 0) METRICS_ADDRESS = InetAddress.getByName(metrics.substring(0, colon));
+                    METRICS_PORT = Integer.parseInt(metrics.substring(colon + 1));
+                } catch (IOException e) {
+                    System.out.println("Direccion de metricas invalida: " + args[i]);
+                    showHelp();
+                } catch (NumberFormatException e) {
+                    System.out.println("Puerto de metricas invalido: " + args[i]);
+                    showHelp();
+                }
+            } else if (args[i].equals("-f") && i + 1 < args.length) {
+                BufferedReader in = new BufferedReader(new FileReader(args[++i]));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        line = line.trim();
+                        if (line.startsWith("#")) continue;
+                        result.addAll(Arrays.asList(line.split("\\s+")));
+                        result.remove("");
+                    }
+                } finally {
+                    in.close();
+                }
+            } else {
+                result.add(args[i]);
+            }
+        }
+        if (HEADLESS) {
+            // keep AWT from initializing a display if anything touches it
+            System.setProperty("java.awt.headless", "true");
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Runs the router without a window: both services start right away and
+     * messages addressed to us are printed to stdout.
+     */
+    private static void startDaemon() {
+        ForwardingService.inbox.subscribe(new MessageSubscriber() {
+            public void onMessages(List<ForwarderMessage> batch) {
+                StringBuilder sb = new StringBuilder();
+                for (ForwarderMessage m : batch) {
+                    sb.append("<<Received Incoming Message to ME from ").append(m.from).append(">>\n");
+                    if (m.path != null) sb.append("Path: ").append(m.path).append("\n");
+                    sb.append(m.text).append("\n\n");
+                }
+                print(sb.toString());
+            }
+        });
+        RoutingService.start();
+        ForwardingService.start(address, FORWARDING_PORT);
+    }
+
     public static void showHelp() {
         System.out.println();
-        System.out.println("Uso: java Setup -i [interface ROUTER_NAME NAME:NEIGHBOR:COST [NAME:NEIGHBOR:COST ...]]");
+        System.out.println("Uso: java Setup [-d] [-c CONFIG] [-m [IP:]PUERTO] -i [interface ROUTER_NAME NAME:NEIGHBOR:COST [NAME:NEIGHBOR:COST ...]]");
+        System.out.println("     java Setup [-d] [-c CONFIG] [-m [IP:]PUERTO] -f ARCHIVO");
+        System.out.println("  -d          sin ventana: inicia router y forwarder y escribe el log en stdout");
+        System.out.println("  -c CONFIG   archivo de configuracion, releido al cambiar (router.properties)");
+        System.out.println("  -m [IP:]PUERTO  sirve /metrics y /routes por HTTP en IP (127.0.0.1) y PUERTO; sin -m no se sirven");
+        System.out.println("  -f ARCHIVO  lee los argumentos -i ... desde ARCHIVO");
         System.exit(1);
     }
 
@@ -0,0 +1,152 @@
+/**
+ * StreamReassembler.java -- puts chunked streams back together at the
+ * destination router.
+ *
+ * Chunks are written to disk as soon as they are in order, so only the
+ * chunks that arrive ahead of a gap are kept in memory (at most
+ * MAX_PENDING per stream). A stream is finished when its last chunk has
+ * been written; streams that stay idle longer than TIMEOUT are dropped.
+ * A finished stream is handed to the LocalInbox like any other message:
+ * with its text when it has at most MAX_INLINE chars, otherwise with a
+ * note saying where the file is.
+ */
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class StreamReassembler {
+    private static final int MAX_STREAMS = 32;
+    private static final int MAX_PENDING = 64;
+    private static final long TIMEOUT = 60 * 1000;
+    private static final int MAX_INLINE = 1024 * 1024;
+    private static final File DIR = new File("streams");
+
+    private final HashMap<String, Stream> streams = new HashMap<String, Stream>();
+
+    private static class Stream {
+        final File file;
+        final Writer out;
+        final HashMap<Integer, ForwarderMessage> pending = new HashMap<Integer, ForwarderMessage>();
+        int expected = 0;
+        int lastChunk = -1;
+        long bytes = 0;
+        long touched = System.currentTimeMillis();
+
+        Stream(File file) throws IOException {
+            this.file = file;
+            this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        }
+    }
+
+    /**
+     * Accepts one chunk addressed to this router.
+     */
+    public synchronized void accept(ForwarderMessage chunk) {
+        expire();
+        String key = chunk.from + "/" + chunk.stream;
+        Stream s = streams.get(key);
+        try {
+            if (s == null) {
+                if (streams.size() >= MAX_STREAMS) {
+                    Setup.println("[StreamReassembler.accept] Demasiados streams abiertos, descartando " + key);
+                    return;
+                }
+                if (!DIR.exists()) DIR.mkdirs();
+                s = new Stream(new File(DIR, (chunk.from + "_" + chunk.stream).replaceAll("[^\\w.-]", "_") + ".part"));
+                streams.put(key, s);
+                Setup.println("[StreamReassembler.accept] Nuevo stream " + key + " de " + chunk.from);
+            }
+            s.touched = System.currentTimeMillis();
+            if (chunk.last) s.lastChunk = chunk.chunk;
+            if (chunk.chunk < s.expected) return; // duplicate
+            if (chunk.chunk > s.expected) {
+                if (s.pending.size() >= MAX_PENDING) {
+                    abort(key, s, "demasiados fragmentos fuera de orden");
+                    return;
+                }
+                s.pending.put(chunk.chunk, chunk);
+                return;
+            }
+            write(s, chunk);
+            ForwarderMessage next;
+            while ((next = s.pending.remove(s.expected)) != null) {
+                write(s, next);
+            }
+            if (s.lastChunk >= 0 && s.expected > s.lastChunk) {
+                s.out.close();
+                streams.remove(key);
+                File done = new File(DIR, s.file.getName().replaceAll("\\.part$", ".txt"));
+                done.delete();
+                if (!s.file.renameTo(done)) done = s.file;
+                Setup.println("<<Received Incoming Stream to ME from " + chunk.from + ">>\n" +
+                        s.bytes + " caracteres en " + s.expected + " fragmentos -> " + done.getPath() + "\n");
+                deliver(chunk, s.bytes, done);
+            }
+        } catch (IOException e) {
+            abort(key, s, e.getMessage());
+        }
+    }
+
+    /**
+     * Hands a finished stream to the subscribers of the LocalInbox. The
+     * file is kept either way.
+     */
+    private void deliver(ForwarderMessage last, long length, File file) {
+        String text = "[" + length + " caracteres, guardados en " + file.getPath() + "]";
+        if (length <= MAX_INLINE) {
+            StringBuilder sb = new StringBuilder((int) length);
+            try {
+                Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+                try {
+                    char[] buf = new char[8192];
+                    int n;
+                    while ((n = in.read(buf)) > 0) sb.append(buf, 0, n);
+                } finally {
+                    in.close();
+                }
+                text = sb.toString();
+            } catch (IOException e) {
+                Setup.println("[StreamReassembler] No es posible leer " + file.getPath() + ": " + e.getMessage());
+            }
+        }
+        ForwarderMessage message = new ForwarderMessage(last.from, Setup.ROUTER_NAME, text, last.priority);
+        message.id = last.id;
+        message.path = last.path;
+        message.arrivedAt = last.arrivedAt;
+        if (!ForwardingService.deliverLocal(message)) {
+            Setup.println("[StreamReassembler] Buzon lleno, stream de " + last.from + " queda solo en " + file.getPath());
+        }
+    }
+
+    private void write(Stream s, ForwarderMessage chunk) throws IOException {
+        s.out.write(chunk.text);
+        s.bytes += chunk.text.length();
+        s.expected++;
+    }
+
+    private void abort(String key, Stream s, String reason) {
+        Setup.println("[StreamReassembler] Stream " + key + " descartado: " + reason);
+        streams.remove(key);
+        if (s == null) return;
+        try {
+            s.out.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        s.file.delete();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Stream>> it = streams.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Stream> e = it.next();
+            if (now - e.getValue().touched > TIMEOUT) {
+                it.remove();
+                abort(e.getKey(), e.getValue(), "tiempo de espera agotado");
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * HistogramTest.java -- checks the bucket math of Histogram.
+ *
+ * Plain main, no framework: from the project directory
+ *   javac -d out src/*.java test/*.java && java -cp out HistogramTest
+ * prints every failed check and exits with 1 if there was any.
+ */
+
+public class HistogramTest {
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        smallValuesAreExact();
+        bucketsBoundValueFromAbove();
+        bucketsAreMonotonic();
+        percentilesOfUniformValues();
+        rotateStartsNewInterval();
+        emptyAndNegative();
+        if (failures > 0) {
+            System.out.println(failures + " fallas");
+            System.exit(1);
+        }
+        System.out.println("HistogramTest OK");
+    }
+
+    /**
+     * Below 16 every value has its own bucket.
+     */
+    private static void smallValuesAreExact() {
+        for (long v = 0; v < 16; v++) {
+            check(reported(v) == v, "valor " + v + " reportado como " + reported(v));
+        }
+    }
+
+    /**
+     * The value reported for v (the upper end of its bucket) is never below
+     * v and at most 1/16 above it, up to the largest long.
+     */
+    private static void bucketsBoundValueFromAbove() {
+        long[] values = {16, 17, 31, 32, 33, 1000, 1023, 1024, 1025, 999999,
+                1L << 40, (1L << 40) + 1, (1L << 62) - 1, 1L << 62, Long.MAX_VALUE - 1};
+        for (long v : values) {
+            long r = reported(v);
+            check(r >= v, "valor " + v + " reportado como " + r + ", menor");
+            check(r - v <= v / 16, "valor " + v + " reportado como " + r + ", error mayor a 1/16");
+        }
+        for (int exp = 4; exp < 63; exp++) {
+            long low = 1L << exp;
+            check(reported(low) < reported(low + (low >> 4)), "2^" + exp + " y el siguiente sub-bucket comparten bucket");
+            check(reported(low - 1) < reported(low), "2^" + exp + " - 1 y 2^" + exp + " comparten bucket");
+        }
+    }
+
+    private static void bucketsAreMonotonic() {
+        long previous = -1;
+        for (long v = 0; v < 1 << 20; v += 7) {
+            long r = reported(v);
+            check(r >= previous, "bucket de " + v + " antes que el de un valor menor");
+            previous = r;
+        }
+    }
+
+    private static void percentilesOfUniformValues() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 10000; v++) h.record(v);
+        Histogram.Snapshot s = h.current();
+        check(s.getCount() == 10000, "count " + s.getCount());
+        check(s.getMax() == 10000, "max " + s.getMax());
+        check(s.getMean() == 5000, "mean " + s.getMean());
+        checkNear(s.percentile(0.5), 5000, "p50");
+        checkNear(s.percentile(0.99), 9900, "p99");
+        checkNear(s.percentile(0.999), 9990, "p999");
+        check(s.percentile(1.0) == 10000, "p100 " + s.percentile(1.0));
+    }
+
+    private static void rotateStartsNewInterval() {
+        Histogram h = new Histogram();
+        h.record(100);
+        h.record(200);
+        Histogram.Snapshot closed = h.rotate();
+        check(closed.getCount() == 2, "intervalo cerrado con " + closed.getCount());
+        check(h.getLast() == closed, "getLast no es el intervalo cerrado");
+        check(h.current().getCount() == 0, "el intervalo nuevo no empieza vacio");
+        h.record(5);
+        check(h.rotate().getMax() == 5, "max no se reinicia");
+        check(closed.getCount() == 2, "rotate cambio un intervalo ya cerrado");
+    }
+
+    private static void emptyAndNegative() {
+        Histogram h = new Histogram();
+        check(h.current().percentile(0.99) == 0, "percentil sin valores");
+        check(h.getLast().getCount() == 0, "getLast antes del primer rotate");
+        h.record(-5);
+        check(h.current().percentile(0.5) == 0, "valor negativo no cuenta como 0");
+    }
+
+    /**
+     * What a histogram reports for v: the upper end of v's bucket, read as
+     * p50 of v and a larger value so the max does not cap it.
+     */
+    private static long reported(long v) {
+        Histogram h = new Histogram();
+        h.record(v);
+        h.record(Long.MAX_VALUE);
+        return h.current().percentile(0.5);
+    }
+
+    private static void checkNear(long actual, long expected, String what) {
+        check(actual >= expected && actual - expected <= expected / 16,
+                what + " " + actual + ", esperado " + expected + " (+1/16)");
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) {
+            failures++;
+            System.out.println("FALLA: " + message);
+        }
+    }
+}